@@ -0,0 +1,109 @@
+package msg;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.FileHasher;
+
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the binary frames exchanged over neighbor connections, as done by
+ * Connection.sendPeerMessage() and the MessageDecoder in Connection.processPacket().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    // Number of pieces described by the response, i.e. the size of the file in MB
+    @Param({"1", "100"})
+    public int pieces;
+
+    private Query query;
+    private Response response;
+    private byte[] queryFrame, responseFrame, burst;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        query = new Query("some-shared-file.txt", 7);
+
+        Random random = new Random(42);
+        byte[] fileDigest = new byte[FileHasher.DIGEST_LENGTH];
+        byte[] pieceDigests = new byte[pieces * FileHasher.DIGEST_LENGTH];
+        random.nextBytes(fileDigest);
+        random.nextBytes(pieceDigests);
+        response = new Response(query.getId(), InetAddress.getByName("192.0.2.1"), 50322, query.getFilename(),
+                (long) pieces << 20, fileDigest, pieceDigests);
+
+        queryFrame = toBytes(query.encode());
+        responseFrame = toBytes(response.encode());
+
+        // Ten queries back to back, as a single socket read would return them during a flood
+        burst = new byte[queryFrame.length * 10];
+        for (int i = 0; i < 10; i++)
+            System.arraycopy(queryFrame, 0, burst, i * queryFrame.length, queryFrame.length);
+    }
+
+    private static byte[] toBytes(ByteBuffer frame) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeQuery() {
+        return query.encode();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeResponse() {
+        return response.encode();
+    }
+
+    @Benchmark
+    public PeerMessage decodeQuery() throws ProtocolException {
+        MessageDecoder decoder = new MessageDecoder();
+        decoder.feed(queryFrame, 0, queryFrame.length);
+        return decoder.next();
+    }
+
+    @Benchmark
+    public PeerMessage decodeResponse() throws ProtocolException {
+        MessageDecoder decoder = new MessageDecoder();
+        decoder.feed(responseFrame, 0, responseFrame.length);
+        return decoder.next();
+    }
+
+    /**
+     * Decode a read holding ten frames, fed in two halves that split a frame, as reads from a socket may.
+     */
+    @Benchmark
+    public int decodeSplitBurst() throws ProtocolException {
+        MessageDecoder decoder = new MessageDecoder();
+        int half = burst.length / 2 + 3;
+        int decoded = 0;
+        decoder.feed(burst, 0, half);
+        while (decoder.next() != null)
+            decoded++;
+        decoder.feed(burst, half, burst.length - half);
+        while (decoder.next() != null)
+            decoded++;
+        return decoded;
+    }
+}
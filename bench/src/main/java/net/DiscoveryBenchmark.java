@@ -0,0 +1,95 @@
+package net;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import util.PeerConfig;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling of discovery pings by a running peer, as its discovery listener does for every datagram:
+ * parsing, deduplication by ping ID, updating the peer table, membership and DHT, answering with a pong,
+ * and propagating the ping to a few other peers.
+ *
+ * The peer binds to free ports on the loopback address, and shares nothing.
+ * Pongs and propagated pings go to loopback addresses where nothing listens.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiscoveryBenchmark {
+    // Number of distinct peers the pings claim to come from, which bounds the size of the peer table
+    private static final int SENDERS = 256;
+
+    private Peer peer;
+    private DiscoveryClient client;
+    private Method processPacket;
+
+    private InetAddress relay;
+    private int nextId;
+    private DatagramPacket duplicate;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        peer = new Peer(new PeerConfig(InetAddress.getLoopbackAddress(), 0, 0, 0,
+                Collections.<File>emptyList(), Paths.get(System.getProperty("java.io.tmpdir"))));
+
+        // The benchmark drives the discovery client directly, rather than over a socket.
+        Field field = Peer.class.getDeclaredField("discoveryClient");
+        field.setAccessible(true);
+        client = (DiscoveryClient) field.get(peer);
+        processPacket = DiscoveryClient.class.getDeclaredMethod("processPacket", DatagramPacket.class);
+        processPacket.setAccessible(true);
+
+        relay = InetAddress.getByName("127.0.0.2");
+        duplicate = ping(nextId++);
+        processPacket.invoke(client, duplicate);
+    }
+
+    private DatagramPacket ping(int id) {
+        int sender = id % SENDERS;
+        byte[] data = ("PI:127.0.1." + sender + ":" + (40000 + sender) + ":" + id + ":1\004").getBytes();
+        return new DatagramPacket(data, data.length, relay, 40000);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        peer.teardown();
+    }
+
+    /**
+     * A ping with a new ID, which is answered and propagated.
+     */
+    @Benchmark
+    public void freshPing() throws Exception {
+        processPacket.invoke(client, ping(nextId++));
+    }
+
+    /**
+     * A ping that was already seen, which is only counted and dropped.
+     */
+    @Benchmark
+    public void duplicatePing() throws Exception {
+        processPacket.invoke(client, duplicate);
+    }
+}
@@ -0,0 +1,125 @@
+package net;
+
+import util.Histogram;
+import util.Log;
+import util.Metrics;
+import util.PeerConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Starts an overlay of many peers in this one process and measures how long their downloads take.
+ *
+ * Every peer binds to an address of its own on the loopback network (127.1.0.1, 127.1.0.2, ...), with ports picked
+ * by the system, and shares one file of its own from a temporary directory. The peers are connected in a ring,
+ * plus a few random neighbors each, and once their routing summaries have spread, peers picked at random
+ * all request other peers' files at once by flooding queries.
+ * The whole 127.0.0.0/8 network leads to the loopback interface on Linux; elsewhere, the addresses must be added first.
+ *
+ * Usage: java -cp target/benchmarks.jar net.OverlayHarness [peers] [extra neighbors per peer] [requests] [file KB] [mode]
+ * where mode is event_loop (the default) or threads; see ExecutionMode.
+ */
+public class OverlayHarness {
+    public static void main(String[] args) throws Exception {
+        int peerCount = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int extraNeighbors = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int fileKB = args.length > 3 ? Integer.parseInt(args[3]) : 1024;
+        ExecutionMode mode = args.length > 4 ? ExecutionMode.valueOf(args[4].toUpperCase()) : ExecutionMode.EVENT_LOOP;
+
+        Log.setLevel(Log.Level.ERROR);
+        Random random = new Random(42);
+        Path root = Files.createTempDirectory("p2p-overlay");
+
+        List<Peer> peers = new ArrayList<>();
+        List<Path> downloadDirs = new ArrayList<>();
+        long started = System.currentTimeMillis();
+        for (int i = 0; i < peerCount; i++) {
+            Path dir = Files.createDirectories(root.resolve("peer-" + i));
+            Path shared = dir.resolve("file-" + i + ".dat");
+            byte[] data = new byte[fileKB << 10];
+            random.nextBytes(data);
+            Files.write(shared, data);
+            Path obtained = Files.createDirectories(dir.resolve("obtained"));
+
+            InetAddress address = InetAddress.getByAddress(new byte[] {127, 1, (byte) ((i + 1) >> 8), (byte) (i + 1)});
+            peers.add(new Peer(mode, new PeerConfig(address, 0, 0, 0,
+                    Collections.singletonList(shared.toFile()), obtained)));
+            downloadDirs.add(obtained);
+        }
+        System.out.println(peerCount + " peers (" + mode + ") started in "
+                + (System.currentTimeMillis() - started) + " ms");
+
+        for (int i = 0; i < peerCount; i++) {
+            connect(peers.get(i), peers.get((i + 1) % peerCount));
+            for (int n = 0; n < extraNeighbors; n++)
+                connect(peers.get(i), peers.get(random.nextInt(peerCount)));
+        }
+        // Routing summaries take a few rounds to spread through the overlay.
+        Thread.sleep(3000);
+
+        // Each request's requester and the index of the file it wants
+        List<int[]> pending = new ArrayList<>();
+        for (int r = 0; r < requests; r++) {
+            int requester = random.nextInt(peerCount);
+            int owner = random.nextInt(peerCount);
+            if (owner == requester)
+                owner = (owner + 1) % peerCount;
+            pending.add(new int[] {requester, owner});
+        }
+
+        Histogram completion = new Histogram();
+        started = System.currentTimeMillis();
+        for (int[] request : pending)
+            peers.get(request[0]).requestFile("file-" + request[1] + ".dat");
+
+        long deadline = started + 60000;
+        while (!pending.isEmpty() && System.currentTimeMillis() < deadline) {
+            for (int j = pending.size() - 1; j >= 0; j--) {
+                int[] request = pending.get(j);
+                if (Files.exists(downloadDirs.get(request[0]).resolve("file-" + request[1] + ".dat"))) {
+                    completion.record(System.currentTimeMillis() - started);
+                    pending.remove(j);
+                }
+            }
+            Thread.sleep(10);
+        }
+
+        System.out.println((requests - pending.size()) + " of " + requests + " downloads finished, in ms: " + completion);
+        // Only the process-wide counters and histograms, since every peer registers gauges of its own
+        System.out.println(Metrics.get().getCounters());
+        System.out.println(Metrics.get().getHistograms());
+
+        for (Peer peer : peers)
+            peer.teardown();
+        delete(root.toFile());
+        Log.flush();
+    }
+
+    /**
+     * Make a neighbor connection from one peer to another, unless they are the same peer.
+     */
+    private static void connect(Peer from, Peer to) throws IOException {
+        if (from == to)
+            return;
+        PeerConfig target = to.getConfig();
+        from.addNeighbor(target.address.getHostAddress(), target.welcomePort);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+}
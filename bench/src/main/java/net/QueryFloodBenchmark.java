@@ -0,0 +1,189 @@
+package net;
+
+import msg.Query;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import util.BloomFilter;
+import util.FileHasher;
+import util.PeerConfig;
+import util.Values;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling of a query received from a neighbor, from decoding its frame to forwarding it to the other neighbors,
+ * as Connection.processPacket() does on the loop thread.
+ *
+ * The neighbors are real connections over loopback sockets, whose far ends are drained by a thread of their own,
+ * so forwarded queries are actually queued and flushed, by the event loop or by connection threads,
+ * depending on the execution mode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryFloodBenchmark {
+    private static final String FILENAME = "wanted.dat";
+
+    // Number of neighbors, including the one the queries come from
+    @Param({"1", "8", "64"})
+    public int neighbors;
+
+    // Whether the neighbors sent routing summaries, in which case only every eighth one may lead to the file
+    @Param({"false", "true"})
+    public boolean summaries;
+
+    // How the connections do their I/O
+    @Param({"EVENT_LOOP", "THREADS"})
+    public ExecutionMode mode;
+
+    private EventLoop loop;
+    private FileHasher hasher;
+    private ServerSocketChannel server;
+    private final List<SocketChannel> farEnds = new ArrayList<>();
+    private final List<Connection> conns = new ArrayList<>();
+    private Thread sink;
+    private volatile boolean running;
+
+    private Connection from;
+    private byte[] duplicateFrame;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        loop = new EventLoop(mode);
+        loop.start();
+        hasher = new FileHasher();
+        // This peer shares nothing, so every query is forwarded.
+        PeerConfig config = new PeerConfig(InetAddress.getLoopbackAddress(), 0, 0, 0,
+                Collections.<File>emptyList(), Paths.get(System.getProperty("java.io.tmpdir")));
+        QueryTable queries = new QueryTable(Values.QUERY_TABLE_CAPACITY, Values.QUERY_EXPIRY);
+        Map<InetAddress, Connection> connections = Collections.synchronizedMap(new HashMap<InetAddress, Connection>());
+        DownloadManager downloads = new DownloadManager(loop, config, hasher);
+        RoutingSummaries routing = new RoutingSummaries(loop, connections, config.sharedFiles);
+        ResponseCache responseCache = new ResponseCache(Values.RESPONSE_CACHE_CAPACITY, Values.RESPONSE_CACHE_TTL,
+                Values.MAX_DOWNLOAD_SOURCES);
+
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        for (int i = 0; i < neighbors; i++) {
+            SocketChannel near = SocketChannel.open(server.socket().getLocalSocketAddress());
+            SocketChannel far = server.accept();
+            far.configureBlocking(false);
+            farEnds.add(far);
+
+            Connection conn = new Connection(near, loop, config, queries, connections, downloads, hasher, routing, responseCache);
+            // Every connection is over loopback, so give each neighbor an address of its own to key it by.
+            conn.neighborAddr = InetAddress.getByAddress(new byte[] {10, 0, (byte) (i >> 8), (byte) i});
+            if (summaries)
+                conn.receivedSummary = summary(i % 8 == 0);
+            connections.put(conn.neighborAddr, conn);
+            conns.add(conn);
+            // Nothing is ever sent back to the connection, but driving it sets it up for the mode's writes.
+            conn.drive(SelectionKey.OP_READ);
+        }
+        from = conns.get(0);
+
+        running = true;
+        sink = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocate(65536);
+                while (running) {
+                    try {
+                        for (SocketChannel far : farEnds) {
+                            while (far.read(buffer) > 0)
+                                buffer.clear();
+                        }
+                    } catch (IOException e) {
+                        return;
+                    }
+                    Thread.yield();
+                }
+            }
+        }, "bench-sink");
+        sink.setDaemon(true);
+        sink.start();
+
+        duplicateFrame = frame(new Query(FILENAME, Values.QUERY_HOP_LIMIT));
+        from.processPacket(duplicateFrame, duplicateFrame.length);
+    }
+
+    /**
+     * Build a summary whose every level is filled with other names, and, if wanted, has the file one hop away.
+     */
+    private static BloomFilter[] summary(boolean reachesFile) {
+        BloomFilter[] levels = new BloomFilter[Values.ROUTING_LEVELS];
+        for (int level = 0; level < levels.length; level++) {
+            levels[level] = new BloomFilter(Values.ROUTING_FILTER_BITS, Values.ROUTING_FILTER_HASHES);
+            for (int n = 0; n < 100; n++)
+                levels[level].add("other-" + level + "-" + n + ".dat");
+        }
+        if (reachesFile)
+            levels[1].add(FILENAME);
+        return levels;
+    }
+
+    private static byte[] frame(Query query) {
+        ByteBuffer encoded = query.encode();
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return bytes;
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException, InterruptedException {
+        running = false;
+        sink.join();
+        for (Connection conn : conns)
+            conn.teardown();
+        for (SocketChannel far : farEnds)
+            far.close();
+        server.close();
+        hasher.shutdown();
+        loop.shutdown();
+    }
+
+    /**
+     * A query not seen before, which is recorded and forwarded. Includes encoding the query's frame.
+     */
+    @Benchmark
+    public void freshQuery() {
+        byte[] frame = frame(new Query(FILENAME, Values.QUERY_HOP_LIMIT));
+        from.processPacket(frame, frame.length);
+    }
+
+    /**
+     * A query that was already seen, which a flooded network delivers many times over and is dropped.
+     */
+    @Benchmark
+    public void duplicateQuery() {
+        from.processPacket(duplicateFrame, duplicateFrame.length);
+    }
+}
@@ -0,0 +1,79 @@
+package util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up a shared file by name, as every received query does, through the SharedFileIndex,
+ * against a linear scan of a list of files, which is how shared files used to be looked up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SharedFileLookupBenchmark {
+    // Number of shared files
+    @Param({"10", "1000", "100000"})
+    public int files;
+
+    private SharedFileIndex index;
+    private List<File> list;
+    private String present, absent;
+
+    @Setup
+    public void setup() {
+        list = new ArrayList<>(files);
+        for (int i = 0; i < files; i++)
+            list.add(new File("./shared/file-" + i + ".dat"));
+        index = new SharedFileIndex();
+        index.rebuild(list);
+
+        // The last file is the worst case for the scan.
+        present = "file-" + (files - 1) + ".dat";
+        absent = "not-shared.dat";
+    }
+
+    @Benchmark
+    public File indexHit() {
+        return index.byName(present);
+    }
+
+    @Benchmark
+    public File indexMiss() {
+        return index.byName(absent);
+    }
+
+    @Benchmark
+    public File scanHit() {
+        return scan(present);
+    }
+
+    @Benchmark
+    public File scanMiss() {
+        return scan(absent);
+    }
+
+    private File scan(String name) {
+        for (File f : list) {
+            if (f.getName().equals(name))
+                return f;
+        }
+        return null;
+    }
+}
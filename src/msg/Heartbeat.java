@@ -3,7 +3,7 @@ package msg;
 /**
  * Instances of this data class represent heartbeats sent between peers to keep their connections alive.
  * Even though a Heartbeat doesn't really need an ID or most of the properties the PeerMessage abstract class offers,
- * this class still extends PeerMessage for socket functionality.
+ * this class still extends PeerMessage for socket functionality. Its frame has an empty payload.
  */
 public class Heartbeat extends PeerMessage {
     @Override
@@ -16,8 +16,18 @@ public class Heartbeat extends PeerMessage {
         return this.id == that.id;
     }
 
+    @Override
+    byte getType() {
+        return TYPE_HEARTBEAT;
+    }
+
+    @Override
+    byte[] encodePayload() {
+        return new byte[0];
+    }
+
     @Override
     public String toString() {
-        return "H\004";
+        return "H";
     }
 }
@@ -0,0 +1,96 @@
+package msg;
+
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming decoder that turns the bytes read from a socket back into PeerMessages.
+ *
+ * TCP does not preserve message boundaries, so a single read may hold part of a frame, or several frames.
+ * Bytes are fed into the decoder as they arrive, and complete frames are taken out with next().
+ * Each connection should use its own decoder, and a decoder is not thread-safe.
+ */
+public class MessageDecoder {
+    /**
+     * Largest payload a frame may declare. Anything bigger is treated as a corrupt stream.
+     */
+    public static final int MAX_PAYLOAD_LENGTH = 1 << 20;
+
+    // Bytes that have been fed but not yet decoded, kept in write mode between calls.
+    private ByteBuffer buffer;
+
+    public MessageDecoder() {
+        buffer = ByteBuffer.allocate(4096);
+    }
+
+    /**
+     * Append bytes read from the socket to the decoder.
+     *
+     * @param data Array holding the bytes.
+     * @param offset Offset of the first byte in the array.
+     * @param length Number of bytes to append.
+     */
+    public void feed(byte[] data, int offset, int length) {
+        if (buffer.remaining() < length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+        buffer.put(data, offset, length);
+    }
+
+    /**
+     * Decode the next complete message that has been fed into the decoder.
+     *
+     * @return The next message, or null if not enough bytes have arrived yet to complete one.
+     * @throws ProtocolException if the stream holds a frame that cannot be decoded.
+     * The stream cannot be resynchronized after this, so the connection should be closed.
+     */
+    public PeerMessage next() throws ProtocolException {
+        buffer.flip();
+        try {
+            if (buffer.remaining() < PeerMessage.HEADER_LENGTH)
+                return null;
+
+            int start = buffer.position();
+            byte type = buffer.get(start);
+            int length = buffer.getInt(start + 1);
+            if (length < 0 || length > MAX_PAYLOAD_LENGTH)
+                throw new ProtocolException("Invalid frame length " + length);
+            if (buffer.remaining() < PeerMessage.HEADER_LENGTH + length)
+                return null;
+
+            int id = buffer.getInt(start + 5);
+            buffer.position(start + PeerMessage.HEADER_LENGTH);
+            ByteBuffer payload = buffer.slice();
+            payload.limit(length);
+            buffer.position(buffer.position() + length);
+
+            try {
+                switch (type) {
+                    case PeerMessage.TYPE_HEARTBEAT:
+                        return new Heartbeat();
+                    case PeerMessage.TYPE_QUERY:
+                        return Query.decode(id, payload);
+                    case PeerMessage.TYPE_RESPONSE:
+                        return Response.decode(id, payload);
+                    case PeerMessage.TYPE_TRANSFER_REQUEST:
+                        return TransferRequest.decode(id, payload);
+                    case PeerMessage.TYPE_ROUTING_SUMMARY:
+                        return RoutingSummary.decode(id, payload);
+                    case PeerMessage.TYPE_TRANSFER_REPLY:
+                        return TransferReply.decode(id, payload);
+                    default:
+                        throw new ProtocolException("Unknown frame type " + type);
+                }
+            } catch (BufferUnderflowException | UnknownHostException e) {
+                throw new ProtocolException("Truncated payload in frame of type " + type);
+            }
+        } finally {
+            buffer.compact();
+        }
+    }
+}
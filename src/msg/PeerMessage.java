@@ -1,12 +1,34 @@
 package msg;
 
+import java.nio.ByteBuffer;
 import java.util.Objects;
 import java.util.Random;
 
 /**
  * Abstract class representing a message sent by a peer.
+ *
+ * On the wire, every message is sent as one binary frame:
+ *
+ * - 1 byte: the message type (see the TYPE_ constants),
+ * - 4 bytes: the length of the payload, in bytes,
+ * - 4 bytes: the message ID,
+ * - the payload, whose layout depends on the type of the message.
+ *
+ * Frames are decoded by a MessageDecoder, which copes with frames that are split across or share a socket read.
  */
 public abstract class PeerMessage {
+    public static final byte TYPE_HEARTBEAT = 'H';
+    public static final byte TYPE_QUERY = 'Q';
+    public static final byte TYPE_RESPONSE = 'R';
+    public static final byte TYPE_TRANSFER_REQUEST = 'T';
+    public static final byte TYPE_ROUTING_SUMMARY = 'B';
+    public static final byte TYPE_TRANSFER_REPLY = 'D';
+
+    /**
+     * Length of the frame header that precedes the payload, in bytes.
+     */
+    public static final int HEADER_LENGTH = 1 + 4 + 4;
+
     int id;
 
     public int getId() {
@@ -17,11 +39,34 @@ public abstract class PeerMessage {
         id = new Random().nextInt(Integer.MAX_VALUE);
     }
 
+    /**
+     * Encode this message into a frame that can be written to a socket.
+     *
+     * @return A buffer holding the whole frame, ready to be read from.
+     */
+    public ByteBuffer encode() {
+        byte[] payload = encodePayload();
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        frame.put(getType())
+                .putInt(payload.length)
+                .putInt(id)
+                .put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * @return The type byte that identifies this kind of message on the wire.
+     */
+    abstract byte getType();
+
+    /**
+     * @return The payload of this message's frame.
+     */
+    abstract byte[] encodePayload();
+
     @Override
     public int hashCode() {
         return Objects.hash(id);
     }
-
-    // Connection messages must have an explicit string form that is sent over a socket
-    abstract public String toString();
 }
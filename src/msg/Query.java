@@ -1,24 +1,50 @@
 package msg;
 
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
 /**
  * Instances of this data class represent queries for files exchanged between peers.
+ *
+ * A query carries a hop limit and a hop count. Every peer that forwards the query takes one off the limit
+ * and adds one to the count, and a query whose limit has reached zero is answered but not forwarded,
+ * so a search only reaches peers within a certain number of hops of the peer that started it.
+ *
+ * The payload of a query's frame is:
+ *
+ * - 1 byte: the hop limit, unsigned,
+ * - 1 byte: the hop count, unsigned,
+ * - the UTF-8 encoded filename.
  */
 public class Query extends PeerMessage {
+    /**
+     * Largest hop limit that fits in a query's frame.
+     */
+    public static final int MAX_HOP_LIMIT = 255;
+
     private String filename;
+    private int hopLimit, hops;
     public InetAddress originAddr;
+    // When this object was made, i.e. when the query was sent or received, in ns. Not sent on the wire
+    private final long createdNanos = System.nanoTime();
+    // Whether this peer's own query stopped taking responses. Not sent on the wire
+    private volatile boolean closed;
 
     /**
      * Create a new query for a certain file.
      * This constructor is called when this peer is creating the query.
      *
      * @param filename The name of the file to query.
+     * @param hopLimit The number of times the query may be forwarded, at most MAX_HOP_LIMIT.
      */
-    public Query(String filename) {
+    public Query(String filename, int hopLimit) {
         super();
+        if (hopLimit < 0 || hopLimit > MAX_HOP_LIMIT)
+            throw new IllegalArgumentException("Hop limit " + hopLimit + " is out of range");
         this.filename = filename;
+        this.hopLimit = hopLimit;
     }
 
     /**
@@ -27,16 +53,96 @@ public class Query extends PeerMessage {
      *
      * @param id ID of the received query.
      * @param filename Filename of the received query.
+     * @param hopLimit Hop limit of the received query.
+     * @param hops Hop count of the received query.
      */
-    public Query(int id, String filename) {
+    public Query(int id, String filename, int hopLimit, int hops) {
         this.id = id;
         this.filename = filename;
+        this.hopLimit = hopLimit;
+        this.hops = hops;
     }
 
     public String getFilename() {
         return filename;
     }
 
+    /**
+     * @return When this query was sent, if it was made by this peer, or received otherwise, from System.nanoTime().
+     */
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    /**
+     * Stop taking responses to this query, which this peer made, e.g. because its download has started.
+     * The query stays in the query table until it expires, so copies of it that are still going around
+     * are recognized as seen instead of being taken for a new query from a neighbor.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * @return Whether close() was called.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return The number of times this query may still be forwarded.
+     */
+    public int getHopLimit() {
+        return hopLimit;
+    }
+
+    /**
+     * @return The number of times this query has been forwarded so far.
+     */
+    public int getHops() {
+        return hops;
+    }
+
+    /**
+     * Count one more hop before this query is forwarded.
+     * Must only be called if the hop limit isn't zero yet.
+     */
+    public void hop() {
+        if (hopLimit == 0)
+            throw new IllegalStateException("Query " + id + " has no hops left");
+        hopLimit--;
+        hops = Math.min(hops + 1, MAX_HOP_LIMIT);
+    }
+
+    /**
+     * Recreate a query from the payload of a received frame.
+     *
+     * @param id ID from the frame header.
+     * @param payload The frame's payload.
+     * @return The received query. Its origin address is left for the receiving connection to fill in.
+     */
+    static Query decode(int id, ByteBuffer payload) {
+        int hopLimit = payload.get() & 0xFF;
+        int hops = payload.get() & 0xFF;
+        return new Query(id, StandardCharsets.UTF_8.decode(payload).toString(), hopLimit, hops);
+    }
+
+    @Override
+    byte getType() {
+        return TYPE_QUERY;
+    }
+
+    @Override
+    byte[] encodePayload() {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(2 + name.length)
+                .put((byte) hopLimit)
+                .put((byte) hops)
+                .put(name)
+                .array();
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj)
@@ -54,6 +160,6 @@ public class Query extends PeerMessage {
 
     @Override
     public String toString() {
-        return "Q:" + id + ";"  + filename + "\004";
+        return "Q:" + id + ";" + hopLimit + ";" + hops + ";" + filename;
     }
 }
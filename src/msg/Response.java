@@ -1,29 +1,57 @@
 package msg;
 
-import util.PeerConfig;
+import util.FileHasher;
 import util.Values;
 
 import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Objects;
 
 /**
  * Instances of this data class represent responses to queries.
+ *
+ * The payload of a response's frame is laid out as:
+ *
+ * - 1 byte: the length of the origin's address (4 for IPv4, 16 for IPv6), followed by the address itself,
+ * - 2 bytes: the origin's transfer port, unsigned,
+ * - 8 bytes: the size of the file, in bytes,
+ * - 32 bytes: the SHA-256 digest of the whole file,
+ * - 4 bytes: the number of pieces, followed by the SHA-256 digest of each piece of Values.PIECE_SIZE bytes,
+ * - the rest: the UTF-8 encoded filename.
+ *
+ * The digests let the receiver check each piece as it arrives, and tell apart different files with the same name.
+ * Since there is a digest per piece, and a frame's payload holds at most MessageDecoder.MAX_PAYLOAD_LENGTH bytes,
+ * files of more than about 32 GB can't be described by a response; see fitsInFrame().
  */
 public class Response extends PeerMessage {
     private InetAddress origin;
     private int port;
     private String filename;
+    private long size;
+    private byte[] fileDigest, pieceDigests;
 
     /**
      * Create a response corresponding to a specified query.
      *
      * @param query The query to which the response should be formed.
+     * @param origin The address of this peer, which the file can be downloaded from.
+     * @param port This peer's transfer port.
+     * @param size The size of this peer's copy of the file, in bytes.
+     * @param fileDigest The digest of this peer's copy of the file.
+     * @param pieceDigests The digests of each piece of this peer's copy of the file, one after the other.
      */
-    public Response(Query query) {
+    public Response(Query query, InetAddress origin, int port, long size, byte[] fileDigest, byte[] pieceDigests) {
         this.id = query.id;
-        this.origin = Values.ownIPAddr();
-        this.port = PeerConfig.get().transferPort;
+        this.origin = origin;
+        this.port = port;
         this.filename = query.getFilename();
+        this.size = size;
+        this.fileDigest = fileDigest;
+        this.pieceDigests = pieceDigests;
     }
 
     /**
@@ -33,12 +61,29 @@ public class Response extends PeerMessage {
      * @param origin Origin IP address from the response
      * @param port Port from the response
      * @param filename Filename from the response
+     * @param size File size from the response
+     * @param fileDigest File digest from the response
+     * @param pieceDigests Piece digests from the response
      */
-    public Response(int id, InetAddress origin, int port, String filename) {
+    public Response(int id, InetAddress origin, int port, String filename, long size,
+                    byte[] fileDigest, byte[] pieceDigests) {
         this.id = id;
         this.origin = origin;
         this.port = port;
         this.filename = filename;
+        this.size = size;
+        this.fileDigest = fileDigest;
+        this.pieceDigests = pieceDigests;
+    }
+
+    /**
+     * Copy this response, to answer another query for the same file on behalf of the same origin.
+     *
+     * @param query The query to answer.
+     * @return A response with the query's ID and this response's other fields.
+     */
+    public Response forQuery(Query query) {
+        return new Response(query.id, origin, port, filename, size, fileDigest, pieceDigests);
     }
 
     public InetAddress getOrigin() {
@@ -53,6 +98,83 @@ public class Response extends PeerMessage {
         return filename;
     }
 
+    public long getSize() {
+        return size;
+    }
+
+    public byte[] getFileDigest() {
+        return fileDigest;
+    }
+
+    /**
+     * @param piece Index of a piece of the file.
+     * @return The digest of that piece.
+     */
+    public byte[] getPieceDigest(int piece) {
+        return Arrays.copyOfRange(pieceDigests, piece * FileHasher.DIGEST_LENGTH, (piece + 1) * FileHasher.DIGEST_LENGTH);
+    }
+
+    /**
+     * @return Whether this response's payload fits in a frame. A response for a file too large to fit can't be sent.
+     */
+    public boolean fitsInFrame() {
+        return payloadLength() <= MessageDecoder.MAX_PAYLOAD_LENGTH;
+    }
+
+    private long payloadLength() {
+        return 1 + origin.getAddress().length + 2 + 8 + FileHasher.DIGEST_LENGTH + 4
+                + (long) pieceDigests.length + filename.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Recreate a response from the payload of a received frame.
+     *
+     * @param id ID from the frame header.
+     * @param payload The frame's payload.
+     * @return The received response.
+     * @throws UnknownHostException if the payload holds an address of an invalid length.
+     * @throws ProtocolException if the number of piece digests doesn't fit in the payload or match the file size.
+     */
+    static Response decode(int id, ByteBuffer payload) throws UnknownHostException, ProtocolException {
+        byte[] addr = new byte[payload.get() & 0xFF];
+        payload.get(addr);
+        int port = payload.getShort() & 0xFFFF;
+        long size = payload.getLong();
+        byte[] fileDigest = new byte[FileHasher.DIGEST_LENGTH];
+        payload.get(fileDigest);
+        // Check the count before allocating, since a bogus one could ask for gigabytes or overflow.
+        int pieceCount = payload.getInt();
+        if (pieceCount < 0 || pieceCount > payload.remaining() / FileHasher.DIGEST_LENGTH
+                || size < 0 || pieceCount != (size + Values.PIECE_SIZE - 1) / Values.PIECE_SIZE)
+            throw new ProtocolException("Invalid response with " + pieceCount + " piece digests for " + size + " bytes");
+        byte[] pieceDigests = new byte[pieceCount * FileHasher.DIGEST_LENGTH];
+        payload.get(pieceDigests);
+        String filename = StandardCharsets.UTF_8.decode(payload).toString();
+        return new Response(id, InetAddress.getByAddress(addr), port, filename, size, fileDigest, pieceDigests);
+    }
+
+    @Override
+    byte getType() {
+        return TYPE_RESPONSE;
+    }
+
+    @Override
+    byte[] encodePayload() {
+        byte[] addr = origin.getAddress();
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + addr.length + 2 + 8
+                + FileHasher.DIGEST_LENGTH + 4 + pieceDigests.length + name.length);
+        payload.put((byte) addr.length)
+                .put(addr)
+                .putShort((short) port)
+                .putLong(size)
+                .put(fileDigest)
+                .putInt(pieceDigests.length / FileHasher.DIGEST_LENGTH)
+                .put(pieceDigests)
+                .put(name);
+        return payload.array();
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj)
@@ -60,17 +182,18 @@ public class Response extends PeerMessage {
         if (obj == null || this.getClass() != obj.getClass())
             return false;
         Response that = (Response) obj;
-        return this.id == that.id && this.filename.equals(that.filename)
+        return this.id == that.id && this.filename.equals(that.filename) && this.size == that.size
+                && Arrays.equals(this.fileDigest, that.fileDigest)
                 && this.port == that.port && this.origin.getHostAddress().equals(that.origin.getHostAddress());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(id, origin.getHostAddress(), port, filename);
+        return Objects.hash(id, origin.getHostAddress(), port, filename, size);
     }
 
     @Override
     public String toString() {
-        return "R:" + id + ";" + origin.getHostAddress() + ":" + port + ";" + filename + "\004";
+        return "R:" + id + ";" + origin.getHostAddress() + ":" + port + ";" + filename;
     }
 }
@@ -0,0 +1,93 @@
+package msg;
+
+import util.BloomFilter;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Instances of this data class represent routing summaries, which tell a neighbor which files can be found through
+ * the sender, so the neighbor only forwards queries to peers that might lead to the file.
+ *
+ * A summary is an attenuated Bloom filter: a list of filters, where filter i holds the names of the files
+ * shared by peers i hops past the sender (filter 0 holds the sender's own files).
+ * A summary is sent when a connection starts, and again whenever it changes.
+ *
+ * The payload of a summary's frame is:
+ *
+ * - 1 byte: the number of filters,
+ * - 1 byte: the number of hash functions of each filter,
+ * - 4 bytes: the length of each filter, in bytes,
+ * - the bits of each filter, one after the other.
+ */
+public class RoutingSummary extends PeerMessage {
+    private BloomFilter[] levels;
+    private final int hashes;
+
+    /**
+     * Create a summary from its filters.
+     *
+     * @param levels The filters, starting with the one for the sender's own files.
+     * All filters must have the same size and number of hash functions.
+     * @param hashes The number of hash functions of each filter.
+     */
+    public RoutingSummary(BloomFilter[] levels, int hashes) {
+        this.levels = levels;
+        this.hashes = hashes;
+    }
+
+    /**
+     * @return The filters of this summary, starting with the one for the sender's own files.
+     */
+    public BloomFilter[] getLevels() {
+        return levels;
+    }
+
+    /**
+     * Recreate a summary from the payload of a received frame.
+     *
+     * @param id ID from the frame header.
+     * @param payload The frame's payload.
+     * @return The received summary.
+     * @throws ProtocolException if the payload's filter lengths don't add up.
+     */
+    static RoutingSummary decode(int id, ByteBuffer payload) throws ProtocolException {
+        int levelCount = payload.get() & 0xFF;
+        int hashes = payload.get() & 0xFF;
+        int length = payload.getInt();
+        if (length <= 0 || (long) levelCount * length != payload.remaining())
+            throw new ProtocolException("Invalid routing summary of " + levelCount + " filters of " + length + " bytes");
+
+        BloomFilter[] levels = new BloomFilter[levelCount];
+        for (int i = 0; i < levelCount; i++) {
+            byte[] bits = new byte[length];
+            payload.get(bits);
+            levels[i] = new BloomFilter(bits, hashes);
+        }
+        RoutingSummary summary = new RoutingSummary(levels, hashes);
+        summary.id = id;
+        return summary;
+    }
+
+    @Override
+    byte getType() {
+        return TYPE_ROUTING_SUMMARY;
+    }
+
+    @Override
+    byte[] encodePayload() {
+        int length = levels.length == 0 ? 1 : levels[0].toBytes().length;
+        ByteBuffer payload = ByteBuffer.allocate(1 + 1 + 4 + levels.length * length);
+        payload.put((byte) levels.length)
+                .put((byte) hashes)
+                .putInt(length);
+        for (BloomFilter level : levels)
+            payload.put(level.toBytes());
+        return payload.array();
+    }
+
+    @Override
+    public String toString() {
+        return "B:" + id + ";" + levels.length;
+    }
+}
@@ -0,0 +1,76 @@
+package msg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Instances of this data class represent the replies to transfer requests.
+ *
+ * Transfer connections stay open across requests, so the sender precedes each requested range with a reply
+ * that tells the requester how many raw bytes follow it. Replies are sent in the order the requests arrived,
+ * and carry the ID of the request they answer.
+ * A sender that refuses a request (e.g. because it doesn't share the file) replies with a length of -1,
+ * and no bytes follow.
+ *
+ * The payload of a reply's frame is:
+ *
+ * - 8 bytes: the number of bytes that follow the frame, or -1 if the request was refused.
+ */
+public class TransferReply extends PeerMessage {
+    /**
+     * Length of a whole reply frame, in bytes. Every reply has the same length.
+     */
+    public static final int FRAME_LENGTH = HEADER_LENGTH + 8;
+
+    private long length;
+
+    /**
+     * Create a reply to a transfer request.
+     *
+     * @param id ID of the request.
+     * @param length Number of bytes that will follow the reply, or -1 if the request was refused.
+     */
+    public TransferReply(int id, long length) {
+        this.id = id;
+        this.length = length;
+    }
+
+    /**
+     * @return The number of bytes that follow the reply, or -1 if the request was refused.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return Whether the request was refused.
+     */
+    public boolean isRefused() {
+        return length < 0;
+    }
+
+    /**
+     * Recreate a reply from the payload of a received frame.
+     *
+     * @param id ID from the frame header.
+     * @param payload The frame's payload.
+     * @return The received reply.
+     */
+    static TransferReply decode(int id, ByteBuffer payload) {
+        return new TransferReply(id, payload.getLong());
+    }
+
+    @Override
+    byte getType() {
+        return TYPE_TRANSFER_REPLY;
+    }
+
+    @Override
+    byte[] encodePayload() {
+        return ByteBuffer.allocate(8).putLong(length).array();
+    }
+
+    @Override
+    public String toString() {
+        return "D:" + id + ";" + length;
+    }
+}
@@ -0,0 +1,109 @@
+package msg;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Instances of this data class represent requests for a range of a file, sent over a transfer connection.
+ *
+ * The payload of a transfer request's frame is laid out as:
+ *
+ * - 8 bytes: the offset of the first requested byte,
+ * - 8 bytes: the number of requested bytes,
+ * - the rest: the UTF-8 encoded filename.
+ */
+public class TransferRequest extends PeerMessage {
+    private String filename;
+    private long offset, length;
+
+    /**
+     * Create a new request for a range of a file.
+     *
+     * @param filename The name of the file.
+     * @param offset Offset of the first requested byte.
+     * @param length Number of requested bytes.
+     */
+    public TransferRequest(String filename, long offset, long length) {
+        super();
+        this.filename = filename;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Recreate a passed transfer request.
+     *
+     * @param id ID of the received request.
+     * @param filename Filename of the received request.
+     * @param offset Offset of the received request.
+     * @param length Length of the received request.
+     */
+    public TransferRequest(int id, String filename, long offset, long length) {
+        this.id = id;
+        this.filename = filename;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Recreate a transfer request from the payload of a received frame.
+     *
+     * @param id ID from the frame header.
+     * @param payload The frame's payload.
+     * @return The received request.
+     */
+    static TransferRequest decode(int id, ByteBuffer payload) {
+        long offset = payload.getLong();
+        long length = payload.getLong();
+        return new TransferRequest(id, StandardCharsets.UTF_8.decode(payload).toString(), offset, length);
+    }
+
+    @Override
+    byte getType() {
+        return TYPE_TRANSFER_REQUEST;
+    }
+
+    @Override
+    byte[] encodePayload() {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(8 + 8 + name.length);
+        payload.putLong(offset)
+                .putLong(length)
+                .put(name);
+        return payload.array();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null || this.getClass() != obj.getClass())
+            return false;
+        TransferRequest that = (TransferRequest) obj;
+        return this.id == that.id && this.filename.equals(that.filename)
+                && this.offset == that.offset && this.length == that.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, filename, offset, length);
+    }
+
+    @Override
+    public String toString() {
+        return "T:" + id + ";" + filename + ";" + offset + "+" + length;
+    }
+}
@@ -1,17 +1,106 @@
 package net;
 
+import util.HashedWheelTimer;
 import util.Log;
 import util.Messages;
 
 import java.io.IOException;
 import java.net.Socket;
-import java.util.Objects;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Abstract representation for a connection between two peers.
+ *
+ * Every connection is driven by its peer's EventLoop: the loop calls handleEvent() whenever the channel can be read
+ * or written, so no connection needs a thread of its own.
+ * In ExecutionMode.THREADS, each connection instead reads with blocking calls on a thread of its own,
+ * and processPacket() is called on that thread.
+ *
+ * Only one thread at a time ever writes to the channel. Other threads hand data to write() and return at once,
+ * and a single flush writes everything that has piled up since the last one with a gathering write,
+ * so messages sent in a burst share one system call and frames from different threads can never interleave.
+ * Flushes run on the loop thread, or on a connection thread in ExecutionMode.THREADS.
+ *
+ * Connections are only equal to themselves. A connection that replaces another to the same peer must not be mistaken
+ * for it, e.g. when the old one removes itself from a map of connections.
  */
-public abstract class AbstractConnection {
+public abstract class AbstractConnection implements EventLoop.Handler {
+    // Largest number of buffers passed to a single gathering write
+    private static final int MAX_GATHER = 64;
+
+    protected SocketChannel channel;
     protected Socket socket;
+    protected EventLoop loop;
+
+    private final ByteBuffer readBuffer;
+
+    // Data handed to write() by any thread that the loop hasn't picked up yet, in the order it was sent
+    private final Queue<ByteBuffer> pending;
+    // Data picked up by the loop that the channel hasn't fully accepted yet; only used by the loop thread
+    private final ArrayDeque<ByteBuffer> outbound;
+    private final ByteBuffer[] gather;
+
+    // Whether a flush is queued or running; set until the flush is over, so only one runs at a time
+    private final AtomicBoolean flushQueued;
+    private final Runnable flushTask;
+
+    // When data last moved in either direction, and the handle of the idle timeout if one is armed.
+    // Different threads access these, so make them volatile
+    private volatile long lastActivity;
+    private volatile HashedWheelTimer.Timeout idleTimeout;
+
+    /**
+     * Set up a connection over a channel. The channel is switched to non-blocking mode.
+     *
+     * @param channel The channel to the other peer, which may still be connecting.
+     * @param loop The loop that drives this connection.
+     * @param readBufferSize The size of the buffer used for reading from the channel.
+     * @throws IOException if the channel could not be switched to non-blocking mode.
+     */
+    protected AbstractConnection(SocketChannel channel, EventLoop loop, int readBufferSize) throws IOException {
+        this.channel = channel;
+        this.socket = channel.socket();
+        this.loop = loop;
+        this.readBuffer = ByteBuffer.allocate(readBufferSize);
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.outbound = new ArrayDeque<>();
+        this.gather = new ByteBuffer[MAX_GATHER];
+        this.flushQueued = new AtomicBoolean();
+        this.flushTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        boolean drained = flush();
+                        // Only clear the flag once the flush is over, so that data written meanwhile can't start
+                        // a second flush on another thread in ExecutionMode.THREADS. That data is picked up here
+                        // instead, unless a new flush has already claimed it.
+                        flushQueued.set(false);
+                        if (!drained)
+                            return;
+                        if (pending.isEmpty() || !flushQueued.compareAndSet(false, true))
+                            break;
+                    }
+                    onDrained();
+                } catch (IOException e) {
+                    if (isAlive())
+                        Log.e(Messages.ERR_CONNWRITE(socket.getInetAddress().getHostAddress()), e);
+                    teardown();
+                }
+            }
+        };
+
+        channel.configureBlocking(false);
+    }
 
     /**
      * Returns whether this connection is still alive, i.e. whether the socket's connection is still active.
@@ -27,38 +116,249 @@ public abstract class AbstractConnection {
      *
      * This should be called if the connection becomes stale (i.e. no heartbeat was received within the timeout interval),
      * or if the client is exiting.
-     * Subclasses should cancel timers and interrupt threads when overriding this method.
+     * Subclasses should cancel timers when overriding this method.
      */
     void teardown() {
+        HashedWheelTimer.Timeout timeout = idleTimeout;
+        if (timeout != null)
+            timeout.cancel();
         try {
-            socket.close();
+            channel.close();
         } catch (IOException e) {
             Log.e(Messages.ERR_SOCKCLOSE, e);
         }
     }
 
     /**
-     * Process an incoming packet on the socket.
+     * Queue data to be written to the channel.
+     * The data is written by the loop thread, together with everything else queued before its next flush.
+     * This method can be called from any thread, and never blocks.
      *
-     * @param pktData Byte array of the incoming packet that was sent over the socket.
-     * @param pktLen Length of the incoming packet
+     * @param data The data to write. It must not be modified afterwards.
+     * @throws IOException if the channel is already closed.
      */
-    abstract protected void processPacket(byte[] pktData, int pktLen);
+    protected void write(ByteBuffer data) throws IOException {
+        if (!channel.isOpen())
+            throw new ClosedChannelException();
 
-    @Override
-    public int hashCode() {
-        return Objects.hash(socket.getInetAddress().getHostAddress());
+        pending.add(data);
+        if (flushQueued.compareAndSet(false, true)) {
+            // A blocking write must not hold up the loop thread.
+            if (loop.isThreaded())
+                loop.spawn(flushTask);
+            else
+                loop.execute(flushTask);
+        }
     }
 
+    /**
+     * Write as much queued data as the channel accepts, batching it into gathering writes.
+     * If the channel fills up, ask the loop for a write event to continue once it has room again.
+     * Called by at most one thread at a time: by the loop thread, or in ExecutionMode.THREADS, by whichever thread
+     * runs the flush task, since flushQueued stays set until that flush is over.
+     *
+     * @return true if all queued data was written, false if some of it is still waiting for the channel.
+     * @throws IOException if the channel had a problem writing.
+     */
+    private boolean flush() throws IOException {
+        ByteBuffer data;
+        while ((data = pending.poll()) != null)
+            outbound.add(data);
+
+        while (!outbound.isEmpty()) {
+            int count = 0;
+            Iterator<ByteBuffer> it = outbound.iterator();
+            while (count < gather.length && it.hasNext())
+                gather[count++] = it.next();
+            if (channel.write(gather, 0, count) > 0)
+                touch();
+            // If the last buffer of the batch wasn't fully written, the channel is full.
+            boolean full = gather[count - 1].hasRemaining();
+            Arrays.fill(gather, 0, count, null);
+
+            while (!outbound.isEmpty() && !outbound.peek().hasRemaining())
+                outbound.poll();
+            if (full) {
+                loop.setInterest(channel, SelectionKey.OP_WRITE, true);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record that data just moved on the channel, which keeps the idle timeout from firing.
+     * Reads and writes through write() already do this; subclasses that write to the channel directly must too.
+     */
+    protected void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Tear this connection down once no data has moved on it for a while.
+     * The check runs on the loop's shared timer: each time it fires early, because something moved in the meantime,
+     * it is simply scheduled again for the rest of the interval, so activity itself never touches the timer.
+     *
+     * @param timeout The longest time that the connection may go without any data moving, in ms.
+     */
+    protected void armIdleTimeout(final long timeout) {
+        touch();
+        idleTimeout = loop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!channel.isOpen())
+                    return;
+                long idle = System.currentTimeMillis() - lastActivity;
+                if (idle < timeout) {
+                    idleTimeout = loop.schedule(this, timeout - idle);
+                    return;
+                }
+
+                Log.e(Messages.CONN_IDLE(socket.getInetAddress().getHostAddress(), idle));
+                teardown();
+            }
+        }, timeout);
+    }
+
+    /**
+     * Start handling this connection's events: register it with the loop for the given operations,
+     * or in ExecutionMode.THREADS, start a thread of its own that does the same with blocking calls.
+     *
+     * @param ops OP_CONNECT to finish a pending connect and then read, or OP_READ to just read.
+     */
+    protected void drive(int ops) {
+        if (!loop.isThreaded()) {
+            loop.register(channel, ops, this);
+            return;
+        }
+
+        // Switch modes before anything else can use the channel, since flushes assume blocking writes from now on.
+        try {
+            channel.configureBlocking(true);
+        } catch (IOException e) {
+            if (isAlive())
+                Log.e(Messages.ERR_CONNREAD(socket.getInetAddress().getHostAddress()), e);
+            teardown();
+            return;
+        }
+        final boolean connect = (ops & SelectionKey.OP_CONNECT) != 0;
+        loop.spawn(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (connect) {
+                        if (channel.isConnectionPending())
+                            channel.finishConnect();
+                        onConnected();
+                    }
+
+                    int recvLen;
+                    while ((recvLen = channel.read(readBuffer)) >= 0) {
+                        touch();
+                        processPacket(readBuffer.array(), recvLen);
+                        readBuffer.clear();
+                        // Processing the packet may have closed the connection
+                        if (!channel.isOpen())
+                            return;
+                    }
+                    onEndOfStream();
+                } catch (IOException e) {
+                    // Only log an error if the connection is still alive, otherwise the socket was closed on purpose
+                    if (isAlive())
+                        Log.e(Messages.ERR_CONNREAD(socket.getInetAddress().getHostAddress()), e);
+                    teardown();
+                }
+            }
+        });
+    }
+
+    /**
+     * Handle a ready event from the loop, dispatching to the read, write or connect logic.
+     *
+     * @param key The key whose channel is ready.
+     */
     @Override
-    public boolean equals(Object obj) {
-        if (this == obj)
-            return true;
-        if (obj == null || this.getClass() != obj.getClass())
-            return false;
-        Connection that = (Connection) obj;
-        // Treat connections with the same peer as the same
-        return this.socket.getInetAddress().getHostAddress()
-                .equals(that.socket.getInetAddress().getHostAddress());
+    public void handleEvent(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                if (!channel.finishConnect())
+                    return;
+                key.interestOps(SelectionKey.OP_READ);
+                onConnected();
+            }
+            if (key.isValid() && key.isReadable())
+                onReadable();
+            if (key.isValid() && key.isWritable())
+                onWritable();
+        } catch (IOException e) {
+            // Only log an error if the connection is still alive, otherwise the socket was closed on purpose
+            if (isAlive())
+                Log.e(Messages.ERR_CONNREAD(socket.getInetAddress().getHostAddress()), e);
+            teardown();
+        }
+    }
+
+    /**
+     * Read everything currently available on the channel, passing each read to processPacket().
+     *
+     * @throws IOException if the channel had a problem reading.
+     */
+    private void onReadable() throws IOException {
+        int recvLen;
+        while ((recvLen = channel.read(readBuffer)) > 0) {
+            touch();
+            processPacket(readBuffer.array(), recvLen);
+            readBuffer.clear();
+            // Processing the packet may have closed the connection
+            if (!channel.isOpen())
+                return;
+        }
+
+        if (recvLen < 0)
+            onEndOfStream();
+    }
+
+    /**
+     * Write as much queued data as the channel accepts, and stop asking for write events once the queue is empty.
+     *
+     * @throws IOException if the channel had a problem writing.
+     */
+    private void onWritable() throws IOException {
+        if (!flush())
+            return;
+        loop.setInterest(channel, SelectionKey.OP_WRITE, false);
+
+        onDrained();
     }
+
+    /**
+     * Called on the loop thread (or the connection's thread) once a pending connect has finished.
+     *
+     * @throws IOException if the connection could not be used.
+     */
+    protected void onConnected() throws IOException {}
+
+    /**
+     * Called by the flushing thread once every queued write has reached the channel, or the channel has room again.
+     * Subclasses that stream data can use this to queue the next part.
+     *
+     * @throws IOException if the connection could not be used.
+     */
+    protected void onDrained() throws IOException {}
+
+    /**
+     * Called on the loop thread (or the connection's thread) once the other peer has closed its side of the connection.
+     */
+    protected void onEndOfStream() {
+        teardown();
+    }
+
+    /**
+     * Process an incoming packet on the socket.
+     * Called on the loop thread, or on the connection's own thread in ExecutionMode.THREADS.
+     *
+     * @param pktData Byte array of the incoming packet that was sent over the socket.
+     * @param pktLen Length of the incoming packet
+     */
+    abstract protected void processPacket(byte[] pktData, int pktLen);
 }
@@ -1,20 +1,30 @@
 package net;
 
 import msg.Heartbeat;
+import msg.MessageDecoder;
 import msg.PeerMessage;
 import msg.Query;
 import msg.Response;
+import msg.RoutingSummary;
+import util.BloomFilter;
+import util.FileHasher;
+import util.HashedWheelTimer;
 import util.Log;
 import util.Messages;
+import util.Metrics;
 import util.PeerConfig;
+import util.SharedFileIndex;
 import util.Values;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Represents a connection between two peers, used for exchanging queries/responses.
@@ -22,165 +32,263 @@ import java.util.*;
  * Each peer in a connection has this object so its Peer instance can manage their respective sides.
  */
 public class Connection extends AbstractConnection {
+    private static final LongAdder QUERIES_RECEIVED = Metrics.get().counter("queries.received");
+    private static final LongAdder QUERIES_DUPLICATE = Metrics.get().counter("queries.duplicate");
+    private static final LongAdder QUERIES_ANSWERED = Metrics.get().counter("queries.answered");
+    private static final LongAdder QUERIES_CACHE_ANSWERED = Metrics.get().counter("queries.cacheAnswered");
+    private static final LongAdder QUERIES_FORWARDED = Metrics.get().counter("queries.forwarded");
+    private static final LongAdder RESPONSES_RECEIVED = Metrics.get().counter("responses.received");
+    private static final LongAdder RESPONSES_UNMATCHED = Metrics.get().counter("responses.unmatched");
+    private static final LongAdder RESPONSES_FORWARDED = Metrics.get().counter("responses.forwarded");
+
     InetAddress neighborAddr;
 
-    private Map<Integer, Query> queries;
+    private final PeerConfig config;
+    private final QueryTable queries;
     private final Map<InetAddress, Connection> connections;
+    private final DownloadManager downloads;
+    private final FileHasher hasher;
+    private final RoutingSummaries routing;
+    private final ResponseCache responseCache;
+
+    // Routing summary that the neighbor sent us, if any, and the last one we sent it; see RoutingSummaries
+    volatile BloomFilter[] receivedSummary;
+    BloomFilter[] sentSummary;
+
+    private final SharedFileIndex sharedFiles;
 
-    private final List<File> sharedFileList;
+    /**
+     * Task that sends heartbeats and checks that the neighbor is still sending them, run by the loop's shared timer.
+     */
+    private final Runnable heartbeat;
+    // Handle of the scheduled heartbeat task, to cancel it on teardown
+    private volatile HashedWheelTimer.Timeout heartbeatTimeout;
 
-    // Use different timers to make sure one task doesn't block the other
-    private Timer heartbeat, reader;
+    // When a message was last received from and sent to the neighbor.
+    // Different threads access these, so make them volatile
+    private volatile long lastReceiveTime, lastSendTime;
+    // Number of queries received from the neighbor, shown as a per-neighbor gauge
+    private final LongAdder queriesFromNeighbor = new LongAdder();
+    // The per-neighbor gauges. A connection that replaces this one registers its own under the same names,
+    // so this one's are only removed if they are still the registered ones.
+    private final Metrics.Gauge idleGauge = new Metrics.Gauge() {
+        @Override
+        public long value() {
+            return System.currentTimeMillis() - lastReceiveTime;
+        }
+    };
+    private final Metrics.Gauge queriesGauge = new Metrics.Gauge() {
+        @Override
+        public long value() {
+            return queriesFromNeighbor.sum();
+        }
+    };
 
-    // Different threads access this, so make it volatile
-    private volatile long lastHeartbeatTime;
+    // Reassembles messages from the stream; only used by the loop thread
+    private final MessageDecoder decoder;
 
     /**
-     * Thread that listens on socket and sends heartbeat via two Timers.
+     * Called once an outgoing connection has been established, before it starts exchanging messages.
      */
-    Thread listener;
+    interface ConnectListener {
+        void connected(Connection conn);
+    }
+
+    // Listener of an outgoing connection that is still being established, or null
+    private volatile ConnectListener connectListener;
 
-    Connection(final Socket socket,
-               Map<Integer, Query> queries,
-               final Map<InetAddress, Connection> connections) {
+    Connection(final SocketChannel channel,
+               EventLoop loop,
+               PeerConfig config,
+               QueryTable queries,
+               final Map<InetAddress, Connection> connections,
+               DownloadManager downloads,
+               FileHasher hasher,
+               RoutingSummaries routing,
+               ResponseCache responseCache) throws IOException {
+        super(channel, loop, 2048);
         this.neighborAddr = socket.getInetAddress();
-        this.socket = socket;
+        this.config = config;
         this.queries = queries;
         this.connections = connections;
-        this.sharedFileList = PeerConfig.get().sharedFileList;
+        this.downloads = downloads;
+        this.hasher = hasher;
+        this.routing = routing;
+        this.responseCache = responseCache;
+        this.sharedFiles = config.sharedFiles;
+        this.decoder = new MessageDecoder();
 
-        heartbeat = new Timer();
-        reader = new Timer();
-
-        this.listener = new Thread(new Runnable() {
+        heartbeat = new Runnable() {
             @Override
             public void run() {
-                // Set up heartbeat send/receiver
-                lastHeartbeatTime = System.currentTimeMillis();
-                heartbeat.scheduleAtFixedRate(new TimerTask() {
-                    @Override
-                    public void run() {
-                        // Send a heartbeat if we've seen one and the socket is still alive, close otherwise
-                        if (Connection.this.isAlive() &&
-                                System.currentTimeMillis() - lastHeartbeatTime < Values.HEARTBEAT_INTERVAL) {
-                            Log.i(Messages.HBEAT_SEND + neighborAddr.getHostAddress());
-
-                            // Send heartbeat!
-                            try {
-                                Connection.this.sendPeerMessage(new Heartbeat());
-                            } catch (IOException e) {
-                                if (Connection.this.isAlive())
-                                    Log.e(Messages.ERR_HBEATSEND(neighborAddr.getHostAddress()), e);
-                            }
-                        } else {
-                            Log.i(Messages.HBEAT_TOUT(neighborAddr.getHostAddress()));
-                            connections.remove(Connection.this.neighborAddr);
-                            Connection.this.teardown();
-                        }
-                    }
-                }, 0, Values.HEARTBEAT_INTERVAL);
-
-                // Set up reading timer
-                reader.scheduleAtFixedRate(new TimerTask() {
-                    @Override
-                    public void run() {
-                        byte[] recvBuf = new byte[2048];
-                        int recvLen = -1;
-                        do {
-                            try {
-                                recvLen = socket.getInputStream().read(recvBuf);
-                            } catch (IOException e) {
-                                // Only log an error if the connection is still alive, otherwise stop
-                                if (Connection.this.isAlive())
-                                    Log.e(Messages.ERR_CONNREAD(neighborAddr.getHostAddress()), e);
-                                else return;
-                            }
-                        } while (Connection.this.isAlive() && recvLen < 0);
-
-                        Connection.this.processPacket(recvBuf, recvLen);
+                // Send a heartbeat if we've heard from the neighbor lately and the socket is still alive, close otherwise.
+                // Any message proves that its sender is alive, so only send one if nothing else was sent lately.
+                long now = System.currentTimeMillis();
+                if (Connection.this.isAlive() && now - lastReceiveTime < Values.HEARTBEAT_TIMEOUT) {
+                    if (now - lastSendTime < Values.HEARTBEAT_INTERVAL / 2)
+                        return;
+                    if (Log.isDebug())
+                        Log.d(Messages.HBEAT_SEND + neighborAddr.getHostAddress());
+
+                    // Send heartbeat!
+                    try {
+                        Connection.this.sendPeerMessage(new Heartbeat());
+                    } catch (IOException e) {
+                        if (Connection.this.isAlive())
+                            Log.e(Messages.ERR_HBEATSEND(neighborAddr.getHostAddress()), e);
                     }
-                }, 0, Values.READER_INTERVAL);
+                } else {
+                    Log.i(Messages.HBEAT_TOUT(neighborAddr.getHostAddress()));
+                    connections.remove(Connection.this.neighborAddr, Connection.this);
+                    Connection.this.teardown();
+                }
             }
-        });
-        // This listener should not keep the peer alive.
-        listener.setDaemon(true);
+        };
+    }
+
+    /**
+     * Start exchanging messages with the neighbor: register with the loop for reads, start sending heartbeats,
+     * and send the neighbor our routing summary.
+     */
+    void start() {
+        begin();
+        drive(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Finish establishing an outgoing connection without blocking the caller, then start exchanging messages.
+     * The connect is finished by the loop, or in ExecutionMode.THREADS by the connection's own thread,
+     * so a neighbor that doesn't answer only holds up this connection.
+     * If the connect fails, the connection is torn down and the listener isn't called.
+     *
+     * @param listener Called once the connection is established, on the thread that finished the connect.
+     */
+    void connect(ConnectListener listener) {
+        connectListener = listener;
+        if (channel.isConnected() && !loop.isThreaded()) {
+            // The connection was established immediately, so there is no connect event to wait for.
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onConnected();
+                    drive(SelectionKey.OP_READ);
+                }
+            });
+        } else {
+            drive(SelectionKey.OP_CONNECT);
+        }
+    }
+
+    @Override
+    protected void onConnected() {
+        ConnectListener listener = connectListener;
+        connectListener = null;
+        if (listener != null)
+            listener.connected(this);
+        begin();
+    }
+
+    /**
+     * Start sending heartbeats and the routing summary, and show the neighbor's gauges.
+     */
+    private void begin() {
+        lastReceiveTime = System.currentTimeMillis();
+        String prefix = config.metricsPrefix() + "neighbor." + neighborAddr.getHostAddress();
+        Metrics.get().gauge(prefix + ".idleMs", idleGauge);
+        Metrics.get().gauge(prefix + ".queries", queriesGauge);
+        heartbeatTimeout = loop.schedule(heartbeat, 0, Values.HEARTBEAT_INTERVAL);
+        routing.update();
     }
 
     /**
      * Write a peer message to the socket, sending it to the other peer.
+     * This method can be called from any thread.
      *
      * @param msg The PeerMessage to send to the other peer.
      * @throws IOException if the socket had a problem sending the message.
      */
     void sendPeerMessage(PeerMessage msg) throws IOException {
-        socket.getOutputStream().write(msg.toString().getBytes());
+        write(msg.encode());
+        lastSendTime = System.currentTimeMillis();
     }
 
     /**
      * Teardown this connection.
-     * Closes all sockets, cancels all timers, and stops all threads.
+     * Closes the socket and stops sending heartbeats.
+     * The other neighbors' routing summaries no longer include what could be reached through this one.
      *
      * This should be called if the connection becomes stale (i.e. no heartbeat was received within the timeout interval),
      * or if the client is exiting.
      */
     @Override
     void teardown() {
-        heartbeat.cancel();
-        reader.cancel();
+        if (connectListener != null) {
+            connectListener = null;
+            Log.i(Messages.CONN_FAILURE(neighborAddr.getHostAddress()));
+        }
+        HashedWheelTimer.Timeout timeout = heartbeatTimeout;
+        if (timeout != null)
+            timeout.cancel();
+        String prefix = config.metricsPrefix() + "neighbor." + neighborAddr.getHostAddress();
+        Metrics.get().removeGauge(prefix + ".idleMs", idleGauge);
+        Metrics.get().removeGauge(prefix + ".queries", queriesGauge);
 
         super.teardown();
+        routing.update();
+    }
+
+    /**
+     * The neighbor closed the connection, so forget it.
+     */
+    @Override
+    protected void onEndOfStream() {
+        connections.remove(neighborAddr, this);
+        teardown();
     }
 
     /**
      * Process an incoming packet on the socket.
-     * If this packet isn't a heartbeat (which just requires logging and updating one field),
+     * The packet's bytes are fed into this connection's decoder, and every message they complete is dispatched.
+     * If a message isn't a heartbeat (which just requires logging),
      * control is passed to another function that handles that respective type of message.
      *
-     * Either this packet is:
+     * Either a message is:
      *
-     * - A heartbeat, in which case we should update the last received time.
+     * - A heartbeat, which only needs logging, since every message updates the last received time.
      * - A query, in which case we should check if this host has the file, otherwise forward the query.
      * - A response, in which case we should see if we sent the query, otherwise forward the response back up the query path.
+     * - A routing summary, in which case we should remember it and update the summaries we send to other neighbors.
      *
      * @param pktData Byte array of the incoming packet that was sent over the socket.
      * @param pktLen Length of the incoming packet
      */
     protected void processPacket(byte[] pktData, int pktLen) {
-        String message = new String(pktData, 0, pktLen).trim(); // Exclude end-of-transmission character
-
-        switch (message.charAt(0)) {
-            case 'H': // Packet is a heartbeat
-                Log.i(Messages.HBEAT_RECV(neighborAddr.getHostAddress()));
-                lastHeartbeatTime = System.currentTimeMillis();
-                break;
-            case 'Q': // Packet is a query
-                // Reconstruct and process query
-                String[] queryParts = message.substring(2) // Exclude "Q:"
-                        .split(";");
-                Query query = new Query(Integer.parseInt(queryParts[0]), queryParts[1]);
-                query.originAddr = socket.getInetAddress();
-                processQuery(query);
-                break;
-            case 'R': // Packet is a response
-                // Reconstruct and process response
-                String[] responseParts = message.substring(2)
-                        .split(";");
-                String[] addressParts = responseParts[1].split(":");
-                try {
-                    Response response = new Response(
-                        Integer.parseInt(responseParts[0]),
-                        InetAddress.getByName(addressParts[0]),
-                        Integer.parseInt(addressParts[1]),
-                        responseParts[2]
-                    );
-                    processResponse(response);
-                } catch (UnknownHostException e) {
-                    Log.e(Messages.ERR_RESPUNK, e);
-                }
+        decoder.feed(pktData, 0, pktLen);
+
+        PeerMessage message;
+        try {
+            while ((message = decoder.next()) != null) {
+                // Every message shows that the neighbor is still there, not just heartbeats.
+                lastReceiveTime = System.currentTimeMillis();
 
-                break;
-            default:
-                Log.e(Messages.CONN_PKTWEIRD);
+                if (message instanceof Heartbeat) {
+                    if (Log.isDebug())
+                        Log.d(Messages.HBEAT_RECV(neighborAddr.getHostAddress()));
+                } else if (message instanceof Query) {
+                    Query query = (Query) message;
+                    query.originAddr = socket.getInetAddress();
+                    processQuery(query);
+                } else if (message instanceof Response) {
+                    processResponse((Response) message);
+                } else if (message instanceof RoutingSummary) {
+                    routing.received(this, (RoutingSummary) message);
+                }
+            }
+        } catch (ProtocolException e) {
+            // The stream can't be trusted after a bad frame, so drop the connection.
+            Log.e(Messages.CONN_PKTWEIRD, e);
+            connections.remove(neighborAddr, this);
+            teardown();
         }
     }
 
@@ -188,53 +296,78 @@ public class Connection extends AbstractConnection {
      * Process an incoming query. Called by processPacket().
      *
      * If this peer has the file requested in the query, then we immediately send a response and (implicitly) discard the query.
-     * Otherwise, we save the query in the queries map and forward the query to every other connection.
+     * Otherwise, if responses for the same file recently passed through this peer, we answer the query with copies of them.
+     * Failing that, unless the query has used up its hop limit, we forward it to the other connections
+     * whose routing summaries say the file might be found through them,
+     * or to Values.QUERY_FANOUT of those picked at random if there are more.
      *
+     * Either way, the query is saved in the query table, so responses can be routed back to where it came from
+     * for as long as the table remembers it (Values.QUERY_EXPIRY ms).
      * To avoid infinitely forwarding queries for files that no peers have, we do nothing if we have seen this query before.
      *
      * @param query The incoming query.
      */
     private void processQuery(Query query) {
-        Log.i(Messages.QUERY_RECV(query));
+        if (Log.isDebug())
+            Log.d(Messages.QUERY_RECV(query));
+        QUERIES_RECEIVED.increment();
+        queriesFromNeighbor.increment();
 
         // Do nothing if we've seen this query before to avoid infinite forwards.
-        if (queries.containsKey(query.getId()))
+        if (!queries.putIfAbsent(query)) {
+            QUERIES_DUPLICATE.increment();
             return;
-
-        boolean hasFile = false;
-        // Check if this peer has the requested file
-        for (File f : sharedFileList) {
-            if (query.getFilename().equals(f.getName())) {
-                hasFile = true;
-            }
         }
 
-        if (hasFile) {
-            Log.i(Messages.QUERY_HASFILE(query));
-            Response newResponse = new Response(query);
+        // Check if this peer has the requested file
+        File sharedFile = sharedFiles.byName(query.getFilename());
 
-            Log.i(Messages.RESP_SEND(newResponse, socket.getInetAddress().getHostAddress()));
-            try {
-                sendPeerMessage(newResponse);
-            } catch (IOException e) {
-                if (this.isAlive()) // This connection may be dead, so only log an error if it is alive
-                    Log.e(Messages.ERR_RESPSEND(this.neighborAddr.getHostAddress()), e);
-            }
+        if (sharedFile != null) {
+            if (Log.isDebug())
+                Log.d(Messages.QUERY_HASFILE(query));
+            QUERIES_ANSWERED.increment();
+            sendResponse(query, sharedFile);
         } else {
             // This peer doesn't have the file, so we can't immediately send a response.
-            Log.i(Messages.QUERY_NOHASFILE(query));
+            if (Log.isDebug())
+                Log.d(Messages.QUERY_NOHASFILE(query));
+
+            // But if other peers recently found the file through this one, answer on their behalf.
+            List<Response> cached = responseCache.answer(query);
+            if (!cached.isEmpty()) {
+                if (Log.isDebug())
+                    Log.d(Messages.QUERY_CACHEHIT(query, cached.size()));
+                QUERIES_CACHE_ANSWERED.increment();
+                for (Response r : cached) {
+                    try {
+                        sendPeerMessage(r);
+                    } catch (IOException e) {
+                        if (isAlive()) // This connection may be dead, so only log an error if it is alive
+                            Log.e(Messages.ERR_RESPSEND(neighborAddr.getHostAddress()), e);
+                    }
+                }
+                return;
+            }
 
-            // Instead, save this query for later and propagate it to other connections.
-            queries.put(query.getId(), query);
+            // Instead, propagate it to other connections, if it may travel any further.
+            if (query.getHopLimit() == 0) {
+                if (Log.isDebug())
+                    Log.d(Messages.QUERY_HOPLIMIT(query));
+                return;
+            }
+            query.hop();
 
-            for (Connection c : connections.values()) {
-                // We don't want to forward the query to this connection
-                if (c == this || c.equals(this))
-                    continue;
+            List<Connection> targets = forwardTargets(query);
+            if (targets.isEmpty())
+                if (Log.isDebug())
+                    Log.d(Messages.QUERY_NOROUTE(query));
 
+            for (Connection c : targets) {
                 try {
-                    Log.i(Messages.QUERY_FWD(query, c.neighborAddr.getHostAddress()));
+                    if (Log.isDebug())
+                        Log.d(Messages.QUERY_FWD(query, c.neighborAddr.getHostAddress()));
                     c.sendPeerMessage(query);
+                    QUERIES_FORWARDED.increment();
                 } catch (IOException e) {
                     if (c.isAlive()) // This connection may be dead, so only log an error if it is alive
                         Log.e(Messages.ERR_QUERYFWD(c.neighborAddr.getHostAddress()), e);
@@ -243,42 +376,112 @@ public class Connection extends AbstractConnection {
         }
     }
 
+    /**
+     * Pick the connections to forward a query to.
+     *
+     * @param query The query to forward, whose hop count has already been taken.
+     * @return Every connection except this one through which the file might be found,
+     * or Values.QUERY_FANOUT of them picked at random if there are more.
+     */
+    private List<Connection> forwardTargets(Query query) {
+        List<Connection> targets = new ArrayList<>();
+        synchronized (connections) {
+            for (Connection c : connections.values()) {
+                // We don't want to forward the query to this connection
+                if (c != this && RoutingSummaries.mayReach(c, query.getFilename(), query.getHopLimit()))
+                    targets.add(c);
+            }
+        }
+
+        if (targets.size() > Values.QUERY_FANOUT) {
+            Collections.shuffle(targets);
+            targets = targets.subList(0, Values.QUERY_FANOUT);
+        }
+        return targets;
+    }
+
+    /**
+     * Respond to a query for a file that this peer shares.
+     * The response carries the file's digests, which may have to be computed first,
+     * so the response is built and sent from the hasher's threads rather than the loop thread.
+     *
+     * @param query The query to respond to.
+     * @param sharedFile This peer's copy of the requested file.
+     */
+    private void sendResponse(final Query query, final File sharedFile) {
+        hasher.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileHasher.Digests digests;
+                try {
+                    digests = hasher.digests(sharedFile);
+                    sharedFiles.putDigest(sharedFile, digests.file);
+                } catch (IOException e) {
+                    Log.e(Messages.ERR_FILEREAD, e);
+                    return;
+                }
+                Response newResponse = new Response(query, config.advertisedAddress(), config.transferPort,
+                        digests.length(), digests.file, digests.pieces);
+                if (!newResponse.fitsInFrame()) {
+                    Log.e(Messages.ERR_RESP_TOOLARGE(sharedFile.getName()));
+                    return;
+                }
+
+                if (Log.isDebug())
+                    Log.d(Messages.RESP_SEND(newResponse, neighborAddr.getHostAddress()));
+                try {
+                    sendPeerMessage(newResponse);
+                } catch (IOException e) {
+                    if (Connection.this.isAlive()) // This connection may be dead, so only log an error if it is alive
+                        Log.e(Messages.ERR_RESPSEND(neighborAddr.getHostAddress()), e);
+                }
+            }
+        });
+    }
+
     /**
      * Process an incoming response packet. Called by processPacket().
      *
-     * If this host sent this response, then we should immediately begin a transfer.
-     * Otherwise, if we have the corresponding query in the queries map,
+     * Every response that matches a known query is cached, so later queries for the same file can be answered here.
+     * If this host sent the corresponding query, then the responder is added as a source for the download,
+     * which starts once the download manager has collected responses for a short while.
+     * Otherwise, if we have the corresponding query in the query table,
      * forward the response up to the original sender of that query.
      *
      * @param response The incoming response.
      */
     private void processResponse(Response response) {
-        // If we don't have the corresponding query, log an error and discard
-        if (!queries.containsKey(response.getId())) {
+        RESPONSES_RECEIVED.increment();
+
+        // If we don't have the corresponding query, or no longer take responses to it, log an error and discard
+        Query coQuery = queries.get(response.getId());
+        if (coQuery == null || coQuery.isClosed()) {
+            RESPONSES_UNMATCHED.increment();
             Log.e(Messages.ERR_RESPUNK);
             return;
         }
-
-        // At this point, we have the query, so pull it from the map
-        Query coQuery = queries.remove(response.getId());
+        // A response for another file under the same ID would be cached and handed on as an answer to this query.
+        if (!response.getFilename().equals(coQuery.getFilename())) {
+            RESPONSES_UNMATCHED.increment();
+            Log.e(Messages.ERR_RESPUNK);
+            return;
+        }
+        responseCache.put(response);
 
         // Since Peer.requestFile() doesn't give the query an origin, we can assume that
         // if coQuery.originAddr == null, this query came from this host.
         if (coQuery.originAddr == null) {
-            Log.i(Messages.REQ_TFER(response));
-            // Initiate transfer request
-            try {
-                ReceiveConnection recvConn = new ReceiveConnection(response);
-                recvConn.requester.start();
-                recvConn.receiver.start();
-            } catch (IOException e) {
-                Log.e(Messages.ERR_SOCKOPEN, e);
-            }
+            // Every peer that responds is a potential source, so hand the response to the download manager.
+            downloads.addSource(coQuery, response);
         } else {
-            // Forward the response through the appropriate connection
+            // Forward the response through the appropriate connection.
+            // The query is kept, so responses from other peers that have the file can follow the same path.
             Connection originConn = connections.get(coQuery.originAddr);
+            if (originConn == null)
+                return;
             try {
                 originConn.sendPeerMessage(response);
+                RESPONSES_FORWARDED.increment();
             } catch (IOException e) {
                 if (originConn.isAlive()) // Connection may be dead
                     Log.e(Messages.ERR_RESPFWD(originConn.neighborAddr.getHostAddress()));
@@ -0,0 +1,639 @@
+package net;
+
+import msg.MessageDecoder;
+import msg.PeerMessage;
+import msg.Query;
+import msg.Response;
+import util.FileHasher;
+import util.HashedWheelTimer;
+import util.Log;
+import util.Messages;
+import util.PeerConfig;
+import util.SharedFileIndex;
+import util.Values;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Kademlia-style distributed hash table, run over the discovery socket, used to find files without flooding queries.
+ *
+ * Every peer has a 64-bit node ID, and every filename a 64-bit key: the first 8 bytes of the SHA-256 digest of the
+ * peer's "{ip}:{discovery port}" and of the filename. The distance between IDs is their XOR.
+ * Peers that share a file store provider records, "this peer has the file", at the Values.DHT_BUCKET_SIZE peers
+ * whose IDs are closest to the filename's key, and store them again every Values.DHT_REPUBLISH_INTERVAL ms.
+ *
+ * The routing table has one bucket per bit of distance, each holding up to Values.DHT_BUCKET_SIZE contacts.
+ * A full bucket keeps its old contacts rather than taking new ones, since long-lived peers are the likeliest to stay;
+ * a contact is dropped when it fails to answer a request.
+ * A lookup asks the closest peers it knows of for closer ones, Values.DHT_ALPHA at a time, so it converges on the key
+ * in O(log n) steps. Once a lookup finds providers of a file, each provider is asked for the file's size and digests,
+ * which come back as an encoded Response and are handed to the download manager like responses to a flooded query.
+ *
+ * Packets are of the form "DH:{type}:{request ID}:{fields}", where the request ID matches answers to requests:
+ *
+ * - FIND_NODE:{key} is answered with NODES:{contacts}, the closest contacts the peer knows of,
+ * - FIND_PROV:{key} is answered with PROVS:{providers}:{contacts}, the providers of the key the peer stores, if any,
+ * - STORE:{key} asks the peer to store its sender as a provider of the key, and isn't answered,
+ * - META:{query ID}:{filename} is answered with FILE:{Base64-encoded Response frame}, or FILE: if it isn't shared.
+ *
+ * Contacts and providers are "{ip}/{discovery port}" joined by commas. The answer to META must fit in one datagram,
+ * which limits lookups to files of about 1.5 GB.
+ *
+ * All state is guarded by this object's lock, since the discovery listener, the shell thread and the timer thread
+ * all use it.
+ */
+class Dht {
+    /**
+     * Called when a lookup is over.
+     */
+    private interface LookupDone {
+        /**
+         * @param closest The closest peers to the key that answered, closest first.
+         * @param providers Providers of the key that were found, if this was a lookup for providers.
+         */
+        void done(List<Contact> closest, List<Contact> providers);
+    }
+
+    /**
+     * Called with the answer to a request, or when the request times out.
+     */
+    private interface Answer {
+        void answered(String[] parts);
+
+        void timedOut();
+    }
+
+    /**
+     * A peer in the routing table, or a provider of a key.
+     */
+    private static class Contact {
+        final String ip;
+        final int port;
+        final long id;
+
+        Contact(String ip, int port) {
+            this.ip = ip;
+            this.port = port;
+            this.id = hash(ip + ":" + port);
+        }
+
+        @Override
+        public String toString() {
+            return ip + "/" + port;
+        }
+    }
+
+    /**
+     * A provider record and when it expires, in ms.
+     */
+    private static class Record {
+        final Contact provider;
+        final long expires;
+
+        Record(Contact provider, long expires) {
+            this.provider = provider;
+            this.expires = expires;
+        }
+    }
+
+    private static final Comparator<Long> UNSIGNED = new Comparator<Long>() {
+        @Override
+        public int compare(Long a, Long b) {
+            return Long.compareUnsigned(a, b);
+        }
+    };
+
+    private final Membership.Sender sender;
+    private final EventLoop loop;
+    private final QueryTable queries;
+    private final DownloadManager downloads;
+    private final FileHasher hasher;
+    private final PeerConfig config;
+    private final Contact self;
+    private final HashedWheelTimer.Timeout publishTask;
+
+    // One bucket per bit of distance from this peer's ID, least recently seen contact first
+    private final List<List<Contact>> buckets = new ArrayList<>();
+    // Maps keys to records of their providers. Kept in access order, so the eldest entry is the least recently used.
+    private final LinkedHashMap<Long, List<Record>> records;
+    // Requests waiting for an answer, keyed by request ID
+    private final Map<Integer, Answer> pending = new HashMap<>();
+    private int nextRequestId;
+
+    /**
+     * Start taking part in the DHT, publishing this peer's shared files once discovery has had time to find peers.
+     *
+     * @param sender Sends packets over the discovery socket.
+     * @param loop Loop whose shared timer times out requests and republishes records.
+     * @param config The peer's configuration, which gives its address, discovery port and shared files.
+     * @param queries Table that queries made by DHT lookups are added to, so the download manager can find them.
+     * @param downloads Download manager that found files are handed to.
+     * @param hasher Hasher used to answer requests for a file's digests.
+     */
+    Dht(Membership.Sender sender, EventLoop loop, PeerConfig config,
+        QueryTable queries, DownloadManager downloads, FileHasher hasher) {
+        this.sender = sender;
+        this.loop = loop;
+        this.queries = queries;
+        this.downloads = downloads;
+        this.hasher = hasher;
+        this.config = config;
+        this.self = new Contact(config.advertisedAddress().getHostAddress(), config.udpClientPort);
+        for (int i = 0; i < Long.SIZE; i++)
+            buckets.add(new ArrayList<Contact>());
+        this.records = new LinkedHashMap<Long, List<Record>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, List<Record>> eldest) {
+                return size() > Values.DHT_RECORD_CAPACITY;
+            }
+        };
+
+        this.publishTask = loop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                publish();
+            }
+        }, Values.DHT_PUBLISH_DELAY, Values.DHT_REPUBLISH_INTERVAL);
+    }
+
+    /**
+     * @return The first 8 bytes of the SHA-256 digest of a string, as a node ID or key.
+     */
+    static long hash(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Add a peer that discovery or the DHT heard from to the routing table, or mark it as seen if it is there already.
+     *
+     * @param ip The peer's IP address.
+     * @param port The peer's discovery port.
+     */
+    synchronized void add(String ip, int port) {
+        Contact contact = new Contact(ip, port);
+        if (contact.id == self.id)
+            return;
+        List<Contact> bucket = buckets.get(bucketOf(contact.id));
+        for (Iterator<Contact> it = bucket.iterator(); it.hasNext(); ) {
+            if (it.next().id == contact.id) {
+                it.remove();
+                bucket.add(contact);
+                return;
+            }
+        }
+        if (bucket.size() < Values.DHT_BUCKET_SIZE)
+            bucket.add(contact);
+    }
+
+    /**
+     * Look up the providers of a file and download it from them.
+     *
+     * @param filename The name of the file.
+     */
+    synchronized void requestFile(final String filename) {
+        // The query never goes on the wire; it only ties the responses from providers to a download.
+        final Query query = new Query(filename, 0);
+        queries.putIfAbsent(query);
+        Log.i(Messages.DHT_LOOKUP(filename));
+
+        new Lookup(hash(filename), true, new LookupDone() {
+            @Override
+            public void done(List<Contact> closest, List<Contact> providers) {
+                if (providers.isEmpty()) {
+                    Log.i(Messages.DHT_NOTFOUND(filename));
+                    queries.remove(query.getId());
+                    return;
+                }
+                for (Contact provider : providers)
+                    requestMetadata(provider, query);
+            }
+        }).step();
+    }
+
+    /**
+     * Ask a provider for the size and digests of a file, and add it as a source of the download if it still has it.
+     *
+     * @param provider The provider.
+     * @param query The query that ties the provider's response to the download.
+     */
+    private void requestMetadata(final Contact provider, final Query query) {
+        request(provider, "META:" + query.getId() + ":" + query.getFilename(), new Answer() {
+            @Override
+            public void answered(String[] parts) {
+                if (parts[3].isEmpty())
+                    return;
+                // A bad encoding or frame is the provider's fault, so it must not get past this answer.
+                try {
+                    byte[] frame = Base64.getDecoder().decode(parts[3]);
+                    MessageDecoder decoder = new MessageDecoder();
+                    decoder.feed(frame, 0, frame.length);
+                    PeerMessage message = decoder.next();
+                    if (message instanceof Response && message.getId() == query.getId()
+                            && ((Response) message).getFilename().equals(query.getFilename()))
+                        downloads.addSource(query, (Response) message);
+                } catch (ProtocolException | RuntimeException e) {
+                    Log.e(Messages.ERR_DHT_PACKET(provider.ip), e);
+                }
+            }
+
+            @Override
+            public void timedOut() {
+            }
+        });
+    }
+
+    /**
+     * Store this peer as a provider of each of its shared files at the peers closest to the file's key.
+     */
+    synchronized void publish() {
+        for (File f : config.sharedFiles.files()) {
+            final long key = hash(f.getName());
+            store(key, self);
+            new Lookup(key, false, new LookupDone() {
+                @Override
+                public void done(List<Contact> closest, List<Contact> providers) {
+                    for (Contact c : closest)
+                        request(c, "STORE:" + key, null);
+                }
+            }).step();
+        }
+    }
+
+    /**
+     * Handle a DHT packet.
+     * Packets that are missing fields or hold bad numbers are dropped, and bad contacts in an answer are skipped.
+     *
+     * @param message The packet's message, starting with "DH:".
+     * @param fromIP IP address the packet came from.
+     * @param fromPort Port the packet came from.
+     */
+    synchronized void process(String message, String fromIP, int fromPort) {
+        String[] parts = message.split(":", -1);
+        String type = parts.length > 1 ? parts[1] : "";
+        // Every packet has a request ID and at least one more field; only PROVS and META have two.
+        if (parts.length < (type.equals("PROVS") || type.equals("META") ? 5 : 4)) {
+            Log.e(Messages.ERR_DHT_PACKET(fromIP));
+            return;
+        }
+        try {
+            dispatch(type, Integer.parseInt(parts[2]), parts, message, new Contact(fromIP, fromPort));
+        } catch (NumberFormatException e) {
+            Log.e(Messages.ERR_DHT_PACKET(fromIP));
+        }
+    }
+
+    /**
+     * Handle a DHT packet whose request ID has been parsed. Numbers in its other fields may still be bad.
+     */
+    private void dispatch(String type, int requestId, String[] parts, String message, Contact from) {
+        add(from.ip, from.port);
+
+        switch (type) {
+            case "FIND_NODE":
+                answer(from, "NODES:" + requestId + ":" + join(closest(Long.parseLong(parts[3]), null)));
+                break;
+            case "FIND_PROV":
+                long key = Long.parseLong(parts[3]);
+                answer(from, "PROVS:" + requestId + ":" + join(providers(key)) + ":" + join(closest(key, null)));
+                break;
+            case "STORE":
+                store(Long.parseLong(parts[3]), from);
+                break;
+            case "META":
+                // The filename may itself contain colons.
+                String[] metaParts = message.split(":", 5);
+                sendMetadata(from, requestId, Integer.parseInt(metaParts[3]), metaParts[4]);
+                break;
+            case "NODES":
+            case "PROVS":
+            case "FILE":
+                Answer answer = pending.remove(requestId);
+                if (answer != null)
+                    answer.answered(parts);
+                break;
+        }
+    }
+
+    /**
+     * Answer a META request with a response for the file, built on the hasher's threads since it needs its digests.
+     */
+    private void sendMetadata(final Contact to, final int requestId, final int queryId, final String filename) {
+        final SharedFileIndex sharedFiles = config.sharedFiles;
+        final File sharedFile = sharedFiles.byName(filename);
+        if (sharedFile == null) {
+            answer(to, "FILE:" + requestId + ":");
+            return;
+        }
+        hasher.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileHasher.Digests digests;
+                try {
+                    digests = hasher.digests(sharedFile);
+                    sharedFiles.putDigest(sharedFile, digests.file);
+                } catch (IOException e) {
+                    Log.e(Messages.ERR_FILEREAD, e);
+                    return;
+                }
+                Response response = new Response(new Query(queryId, filename, 0, 0),
+                        config.advertisedAddress(), config.transferPort, digests.length(), digests.file, digests.pieces);
+                if (!response.fitsInFrame()) {
+                    Log.e(Messages.ERR_RESP_TOOLARGE(filename));
+                    answer(to, "FILE:" + requestId + ":");
+                    return;
+                }
+                ByteBuffer frame = response.encode();
+                byte[] bytes = new byte[frame.remaining()];
+                frame.get(bytes);
+                answer(to, "FILE:" + requestId + ":" + Base64.getEncoder().encodeToString(bytes));
+            }
+        });
+    }
+
+    /**
+     * Send a request, and drop the contact from the routing table if it doesn't answer in time.
+     *
+     * @param to The peer to send the request to.
+     * @param request The request's type, followed by a colon and its fields, all but the request ID.
+     * @param answer Called with the answer, or null if the request isn't answered.
+     */
+    private void request(final Contact to, String request, final Answer answer) {
+        final int requestId = nextRequestId++;
+        int colon = request.indexOf(':');
+        String type = request.substring(0, colon);
+        send(to, type + ":" + requestId + request.substring(colon));
+        if (answer == null)
+            return;
+
+        pending.put(requestId, answer);
+        loop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Dht.this) {
+                    if (pending.remove(requestId) == null)
+                        return;
+                    remove(to);
+                    answer.timedOut();
+                }
+            }
+        }, Values.DHT_REQUEST_TIMEOUT);
+    }
+
+    private void answer(Contact to, String answer) {
+        send(to, answer);
+    }
+
+    private void send(Contact to, String message) {
+        byte[] data = ("DH:" + message + "\004").getBytes(StandardCharsets.UTF_8);
+        try {
+            sender.send(data, to.ip, to.port);
+        } catch (IOException e) {
+            Log.e(Messages.ERR_UDP_PKTSEND, e);
+        }
+    }
+
+    private void remove(Contact contact) {
+        List<Contact> bucket = buckets.get(bucketOf(contact.id));
+        for (Iterator<Contact> it = bucket.iterator(); it.hasNext(); ) {
+            if (it.next().id == contact.id)
+                it.remove();
+        }
+    }
+
+    /**
+     * Record a provider of a key, replacing any older record of the same provider.
+     */
+    private void store(long key, Contact provider) {
+        List<Record> keyRecords = records.get(key);
+        if (keyRecords == null) {
+            keyRecords = new ArrayList<>();
+            records.put(key, keyRecords);
+        }
+        for (Iterator<Record> it = keyRecords.iterator(); it.hasNext(); ) {
+            if (it.next().provider.id == provider.id)
+                it.remove();
+        }
+        if (keyRecords.size() == Values.MAX_DOWNLOAD_SOURCES)
+            keyRecords.remove(0);
+        keyRecords.add(new Record(provider, System.currentTimeMillis() + Values.DHT_RECORD_TTL));
+    }
+
+    /**
+     * @return The providers of a key whose records haven't expired.
+     */
+    private List<Contact> providers(long key) {
+        List<Contact> result = new ArrayList<>();
+        List<Record> keyRecords = records.get(key);
+        if (keyRecords == null)
+            return result;
+        long now = System.currentTimeMillis();
+        for (Iterator<Record> it = keyRecords.iterator(); it.hasNext(); ) {
+            Record r = it.next();
+            if (r.expires <= now)
+                it.remove();
+            else
+                result.add(r.provider);
+        }
+        if (keyRecords.isEmpty())
+            records.remove(key);
+        return result;
+    }
+
+    /**
+     * @param key A key or node ID.
+     * @param exclude Contacts to leave out, or null.
+     * @return Up to Values.DHT_BUCKET_SIZE contacts from the routing table, closest to the key first.
+     */
+    private List<Contact> closest(final long key, Set<Long> exclude) {
+        List<Contact> all = new ArrayList<>();
+        for (List<Contact> bucket : buckets) {
+            for (Contact c : bucket) {
+                if (exclude == null || !exclude.contains(c.id))
+                    all.add(c);
+            }
+        }
+        Collections.sort(all, byDistance(key));
+        return all.subList(0, Math.min(Values.DHT_BUCKET_SIZE, all.size()));
+    }
+
+    private static Comparator<Contact> byDistance(final long key) {
+        return new Comparator<Contact>() {
+            @Override
+            public int compare(Contact a, Contact b) {
+                return UNSIGNED.compare(a.id ^ key, b.id ^ key);
+            }
+        };
+    }
+
+    private int bucketOf(long id) {
+        return Long.SIZE - 1 - Long.numberOfLeadingZeros(id ^ self.id);
+    }
+
+    private static String join(List<Contact> contacts) {
+        StringBuilder sb = new StringBuilder();
+        for (Contact c : contacts) {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parse a list of contacts from an answer. Contacts without an address or a valid port are skipped,
+     * so one bad entry, or an answer of the wrong type, can't stop a lookup.
+     *
+     * @param s The list, as sent.
+     * @return The contacts.
+     */
+    private static List<Contact> parseContacts(String s) {
+        List<Contact> contacts = new ArrayList<>();
+        if (s.isEmpty())
+            return contacts;
+        for (String c : s.split(",")) {
+            String[] fields = c.split("/");
+            if (fields.length != 2 || fields[0].isEmpty())
+                continue;
+            int port;
+            try {
+                port = Integer.parseInt(fields[1]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (port > 0 && port <= 0xFFFF)
+                contacts.add(new Contact(fields[0], port));
+        }
+        return contacts;
+    }
+
+    /**
+     * An iterative lookup of the peers closest to a key, or of the key's providers.
+     * Only used while holding the DHT's lock.
+     */
+    private class Lookup {
+        final long key;
+        final boolean forProviders;
+        final LookupDone callback;
+
+        // Peers known to the lookup, closest to the key first, and the IDs of those that were asked or answered
+        final List<Contact> shortlist = new ArrayList<>();
+        final Set<Long> known = new HashSet<>();
+        final Set<Long> asked = new HashSet<>();
+        final List<Contact> answered = new ArrayList<>();
+        final Map<Long, Contact> providers = new LinkedHashMap<>();
+        int inFlight;
+        boolean finished;
+
+        Lookup(long key, boolean forProviders, LookupDone callback) {
+            this.key = key;
+            this.forProviders = forProviders;
+            this.callback = callback;
+            learn(closest(key, null));
+            // This peer may be one of the closest to the key itself.
+            if (forProviders) {
+                for (Contact p : providers(key))
+                    providers.put(p.id, p);
+            }
+        }
+
+        /**
+         * Add contacts to the shortlist, keeping it sorted by distance.
+         */
+        void learn(List<Contact> contacts) {
+            for (Contact c : contacts) {
+                if (c.id != self.id && known.add(c.id))
+                    shortlist.add(c);
+            }
+            Collections.sort(shortlist, byDistance(key));
+        }
+
+        /**
+         * Ask the closest peers that haven't been asked yet, up to Values.DHT_ALPHA at a time,
+         * and finish once the closest Values.DHT_BUCKET_SIZE peers have all been asked and none is still answering.
+         */
+        void step() {
+            if (finished)
+                return;
+            if (forProviders && !providers.isEmpty()) {
+                finish();
+                return;
+            }
+
+            int considered = 0;
+            for (final Contact c : shortlist) {
+                if (inFlight >= Values.DHT_ALPHA || considered++ >= Values.DHT_BUCKET_SIZE)
+                    break;
+                if (!asked.add(c.id))
+                    continue;
+                inFlight++;
+                request(c, (forProviders ? "FIND_PROV:" : "FIND_NODE:") + key, new Answer() {
+                    @Override
+                    public void answered(String[] parts) {
+                        inFlight--;
+                        answered.add(c);
+                        if (forProviders) {
+                            for (Contact p : parseContacts(parts[3]))
+                                providers.put(p.id, p);
+                            // Only a PROVS answer has a second list, but any answer with the request's ID ends up here.
+                            learn(parseContacts(parts.length > 4 ? parts[4] : ""));
+                        } else {
+                            learn(parseContacts(parts[3]));
+                        }
+                        step();
+                    }
+
+                    @Override
+                    public void timedOut() {
+                        inFlight--;
+                        shortlist.remove(c);
+                        step();
+                    }
+                });
+            }
+            if (inFlight == 0)
+                finish();
+        }
+
+        void finish() {
+            finished = true;
+            Collections.sort(answered, byDistance(key));
+            List<Contact> closest = answered.subList(0, Math.min(Values.DHT_BUCKET_SIZE, answered.size()));
+            List<Contact> found = new ArrayList<>();
+            for (Contact p : providers.values()) {
+                if (p.id != self.id)
+                    found.add(p);
+            }
+            callback.done(closest, found);
+        }
+    }
+
+    /**
+     * Stop republishing this peer's records.
+     */
+    void stop() {
+        publishTask.cancel();
+    }
+}
@@ -1,7 +1,10 @@
 package net;
 
+import util.FileHasher;
+import util.HashedWheelTimer;
 import util.Log;
 import util.Messages;
+import util.Metrics;
 import util.PeerConfig;
 import util.Values;
 
@@ -9,22 +12,44 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.util.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Class that sends discovery packets to other peers, forming the P2P network.
+ * The same socket carries the packets of the gossip membership protocol, which Membership handles,
+ * and those of the DHT, which Dht handles.
  */
 public class DiscoveryClient {
-    private DatagramSocket udpSocket;
+    private static final LongAdder PACKETS_SENT = Metrics.get().counter("discovery.packetsSent");
+    private static final LongAdder PACKETS_RECEIVED = Metrics.get().counter("discovery.packetsReceived");
+    private static final LongAdder PINGS_RECEIVED = Metrics.get().counter("discovery.pingsReceived");
+    private static final LongAdder PINGS_DUPLICATE = Metrics.get().counter("discovery.pingsDuplicate");
+    private static final LongAdder PONGS_RECEIVED = Metrics.get().counter("discovery.pongsReceived");
+
+    private final DatagramSocket udpSocket;
 
     // Different threads will access this, so make it volatile
     private volatile boolean listenerRunning;
 
-    private Map<String, Integer> discoveredPeers; // Maps IP to port.
-    private final List<String> recvdPongs;
+    private final PeerTable discoveredPeers;
+    // IDs of pings seen recently, oldest first, so a ping that comes back around is dropped. Guarded by itself
+    private final LinkedHashMap<Integer, Boolean> seenPings;
+    private final Random random = new Random();
+    private final Membership membership;
+    private final Dht dht;
+
+    private final EventLoop loop;
+    // Peer whose connect command is waiting for a pong, and the timeout of the wait. Guarded by pongLock
+    private final Object pongLock = new Object();
+    private Peer connectingPeer;
+    private HashedWheelTimer.Timeout pongTimeout;
+    private final HashedWheelTimer.Timeout sweepTask;
 
-    private int udpPort;
+    private final PeerConfig config;
+    private final int udpPort;
     private final int welcomePort; // Needed for sending pongs.
 
     /**
@@ -32,13 +57,42 @@ public class DiscoveryClient {
      */
     public Thread listener;
 
-    DiscoveryClient() throws SocketException {
-        this.udpPort = PeerConfig.get().udpClientPort;
-        this.welcomePort = PeerConfig.get().welcomePort;
-        this.udpSocket = new DatagramSocket(this.udpPort);
+    DiscoveryClient(Peer peer, EventLoop loop, PeerConfig config, DatagramSocket udpSocket,
+                    QueryTable queries, DownloadManager downloads, FileHasher hasher) {
+        this.loop = loop;
+        this.config = config;
+        this.udpPort = config.udpClientPort;
+        this.welcomePort = config.welcomePort;
+        this.udpSocket = udpSocket;
 
-        discoveredPeers = new HashMap<>();
-        recvdPongs = new ArrayList<>();
+        discoveredPeers = new PeerTable(Values.PEER_TABLE_CAPACITY, Values.PEER_TABLE_TTL);
+        seenPings = new LinkedHashMap<Integer, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+                return size() > Values.PING_DEDUP_CAPACITY;
+            }
+        };
+        sweepTask = loop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                discoveredPeers.sweep(System.currentTimeMillis());
+            }
+        }, Values.PEER_SWEEP_INTERVAL, Values.PEER_SWEEP_INTERVAL);
+        Membership.Sender sender = new Membership.Sender() {
+            @Override
+            public void send(byte[] data, String ip, int port) throws IOException {
+                udpSocket.send(new DatagramPacket(data, data.length, InetAddress.getByName(ip), port));
+                PACKETS_SENT.increment();
+            }
+        };
+        membership = new Membership(peer, discoveredPeers, sender, loop, config);
+        dht = new Dht(sender, loop, config, queries, downloads, hasher);
+        Metrics.get().gauge(config.metricsPrefix() + "discovery.peers", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return discoveredPeers.size();
+            }
+        });
 
         listener = new Thread(new Runnable() {
             @Override
@@ -46,7 +100,8 @@ public class DiscoveryClient {
                 listenerRunning = true;
                 while (listenerRunning) {
                     // Receive a packet, then send it to the processor method.
-                    byte[] recvBuf = new byte[2048];
+                    // DHT answers can carry a file's digests, so make room for the largest datagram.
+                    byte[] recvBuf = new byte[65507];
                     DatagramPacket recvPacket = new DatagramPacket(recvBuf, recvBuf.length);
                     try {
                         udpSocket.receive(recvPacket);
@@ -56,8 +111,14 @@ public class DiscoveryClient {
                         // which will probably say as much.
                         if (listenerRunning)
                             Log.e(Messages.ERR_UDP_PKTRECV, e);
+                        continue;
+                    }
+                    // A malformed packet must not end the listener, or this peer would stop hearing from anyone.
+                    try {
+                        processPacket(recvPacket);
+                    } catch (RuntimeException e) {
+                        Log.e(Messages.ERR_UDP_BADPKT(recvPacket.getAddress().getHostAddress()), e);
                     }
-                    processPacket(recvPacket);
                 }
             }
         });
@@ -67,58 +128,55 @@ public class DiscoveryClient {
 
     /**
      * Send a ping to a specified peer and wait for a pong.
+     * When the first pong arrives, connect to two of the peers that have sent one; if none arrives in time, log an error.
      *
      * @param ip IP address of the peer
      * @param port Port of the peer
      */
     void sendConnectPing(final Peer peer, String ip, final int port) throws IOException {
-        // Create and send ping
-        String pingMsg = "PI:" + Values.ownIPAddr().getHostAddress() + ":" + this.udpPort + "\004";
-        sendPing(pingMsg.getBytes(), ip, port);
+        // Create and send ping. Remember its ID, so it isn't answered or propagated when it comes back around.
+        int pingId = random.nextInt(Integer.MAX_VALUE);
+        markSeen(pingId);
+        byte[] pingMsg = pingMessage(config.advertisedAddress().getHostAddress(), this.udpPort, pingId, Values.PING_HOP_LIMIT);
+        sendPing(pingMsg, ip, port);
 
-        discoveredPeers.put(ip, port);
+        discoveredPeers.add(ip, port);
 
-        // Wait for pong, then connect to two peers
-        final Thread pongListener = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                // Wait for recvdPongs to fill (or until timeout).
-                synchronized (recvdPongs) {
-                    try {
-                        recvdPongs.wait(Values.PONGWAIT_INTERVAL);
-                    } catch (InterruptedException ignored) {}
-                    // Ignore if this thread was interrupted,
-                    // because that probably means someone called teardown() or is otherwise exiting the peer.
-                }
-
-                // At this point, we've received at least one pong, so we should connect to two random peers.
-                if (recvdPongs.isEmpty()) {
-                    Log.e(Messages.ERR_NOPONGS);
-                    return;
-                }
-                Random r = new Random();
-                for (int i = 0; i < 2; i++) {
-                    if (recvdPongs.isEmpty())
-                        break;
-                    String recvdPong = recvdPongs.get(r.nextInt(recvdPongs.size()));
-                    // Extract IP address and port from pong
-                    String[] pongMsgParts = recvdPong.trim().split(":");
-                    String pongIP = pongMsgParts[1];
-                    int pongPort = Integer.parseInt(pongMsgParts[2]);
-
-                    // Tell the calling peer to establish a connection
-                    try {
-                        peer.addNeighbor(pongIP, pongPort);
-                        recvdPongs.remove(recvdPong);
-                    } catch (IOException e) {
-                        Log.e(Messages.CONN_FAILURE(pongIP), e);
+        // Wait for a pong on the loop's shared timer, instead of holding a thread for the whole wait.
+        synchronized (pongLock) {
+            if (pongTimeout != null)
+                pongTimeout.cancel();
+            connectingPeer = peer;
+            pongTimeout = loop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (pongLock) {
+                        // A pong that arrived in the meantime already took care of the connect command.
+                        if (connectingPeer != peer)
+                            return;
+                        connectingPeer = null;
+                        pongTimeout = null;
                     }
+                    Log.e(Messages.ERR_NOPONGS);
                 }
+            }, Values.PONGWAIT_INTERVAL);
+        }
+    }
+
+    /**
+     * Connect to the two liveliest peers that have sent a pong.
+     *
+     * @param peer The peer that issued the connect command
+     */
+    private void connectToPongs(Peer peer) {
+        for (PeerTable.Entry candidate : discoveredPeers.neighborCandidates(2)) {
+            // Tell the calling peer to establish a connection
+            try {
+                peer.addNeighbor(candidate.ip, candidate.welcomePort);
+            } catch (IOException e) {
+                Log.e(Messages.CONN_FAILURE(candidate.ip), e);
             }
-        });
-        // This thread shouldn't keep the peer alive.
-        pongListener.setDaemon(true);
-        pongListener.start();
+        }
     }
 
     /**
@@ -126,23 +184,49 @@ public class DiscoveryClient {
      *
      * Either this packet is:
      *
-     * - A ping, in which case we should add the sender to our peers, send a pong, and propagate the ping, or
-     * - A pong, which signifies an acknowledgement of a sent discovery packet. In this case, we open a new socket.
+     * - A ping, in which case we should add the sender to our peers, send a pong, and propagate the ping,
+     * unless a ping with the same ID was seen recently, or
+     * - A pong, which signifies an acknowledgement of a sent discovery packet. In this case, we record the sender's
+     * welcome port and open a new socket.
      * Since this should only happen when we issue the "connect" command to the sender of this packet, this is handled
-     * by a Timer as setup by sendConnectPing().
+     * by connecting right away if sendConnectPing() is still waiting for a pong.
+     * - A membership packet, which is handed to the membership protocol, or
+     * - A DHT packet, which is handed to the DHT.
+     *
+     * The senders of pings and pongs become members, so they are probed from then on.
+     * Packets that are missing fields are dropped.
      *
      * @param packet The packet that was received
      */
     private void processPacket(DatagramPacket packet) {
         byte[] pktData = packet.getData();
-        String pktMessage = new String(pktData);
+        String pktMessage = new String(pktData, 0, packet.getLength());
 
         String[] msgParts = pktMessage.trim().split(":");
+        PACKETS_RECEIVED.increment();
         switch(msgParts[0]) {
             case "PI": // This packet is a ping
+                if (msgParts.length < 3)
+                    break;
                 String pingIP = msgParts[1];
                 int pingPort = Integer.parseInt(msgParts[2]);
-//                Log.i(Messages.PING_RECV + Values.ipPortStr(pingIP, pingPort));
+                // Older peers send pings without an ID or hop limit. Those are answered, but never propagated.
+                boolean hasId = msgParts.length >= 5;
+                int pingId = hasId ? Integer.parseInt(msgParts[3]) : 0;
+                int hopLimit = hasId ? Integer.parseInt(msgParts[4]) : 0;
+                if (Log.isDebug())
+                    Log.d(Messages.PING_RECV + Values.ipPortStr(pingIP, pingPort));
+
+                // Every peer that propagates a ping sends it to several others, so most peers receive it more than once.
+                // Only the first copy is answered and propagated.
+                PINGS_RECEIVED.increment();
+                if (hasId && !markSeen(pingId)) {
+                    PINGS_DUPLICATE.increment();
+                    break;
+                }
+                discoveredPeers.heard(pingIP, pingPort, 0);
+                membership.join(pingIP, pingPort);
+                dht.add(pingIP, pingPort);
 
                 // Send a response pong
                 try {
@@ -151,40 +235,87 @@ public class DiscoveryClient {
                     Log.e(Messages.ERR_UDP_PKTSEND, e);
                 }
 
-                // If we haven't seen this peer before, propagate it
-                if (!discoveredPeers.containsKey(pingIP)) {
-                    discoveredPeers.put(pingIP, pingPort);
-
-                    propagatePing(pktData, pingIP);
+                // Propagate the ping while it has hops left, even if we've heard from its sender before,
+                // since the sender may have restarted and been forgotten by other peers.
+                if (hopLimit > 0) {
+                    byte[] propagated = pingMessage(pingIP, pingPort, pingId, hopLimit - 1);
+                    propagatePing(propagated, pingIP, packet.getAddress().getHostAddress());
                 }
                 break;
             case "PO": // This packet is a pong
-//                Log.i(Messages.PONG_RECV + Values.ipPortStr(msgParts[1], Integer.parseInt(msgParts[2])));
-                synchronized (recvdPongs) {
-                    recvdPongs.add(pktMessage);
-                    recvdPongs.notify();
+                if (msgParts.length < 3)
+                    break;
+                if (Log.isDebug())
+                    Log.d(Messages.PONG_RECV + Values.ipPortStr(msgParts[1], Integer.parseInt(msgParts[2])));
+                // Pongs are sent from the discovery socket, so the packet's source port is the sender's discovery port.
+                PONGS_RECEIVED.increment();
+                discoveredPeers.heard(msgParts[1], packet.getPort(), Integer.parseInt(msgParts[2]));
+                membership.join(msgParts[1], packet.getPort());
+                dht.add(msgParts[1], packet.getPort());
+                Peer connecting;
+                synchronized (pongLock) {
+                    // The first pong after a connect command ends the wait for pongs.
+                    connecting = connectingPeer;
+                    if (connecting != null) {
+                        pongTimeout.cancel();
+                        connectingPeer = null;
+                        pongTimeout = null;
+                    }
                 }
+                if (connecting != null)
+                    connectToPongs(connecting);
+                break;
+            case "SW": // This packet belongs to the membership protocol
+                membership.process(msgParts, packet.getAddress().getHostAddress(), packet.getPort());
+                break;
+            case "DH": // This packet belongs to the DHT
+                dht.process(pktMessage.trim(), packet.getAddress().getHostAddress(), packet.getPort());
         }
     }
 
     /**
-     * Propagate a given ping message to each of this host's neighbors.
+     * Remember a ping's ID.
+     *
+     * @param pingId The ping's ID.
+     * @return true if the ID wasn't seen recently, false if the ping is a duplicate.
+     */
+    private boolean markSeen(int pingId) {
+        synchronized (seenPings) {
+            return seenPings.put(pingId, Boolean.TRUE) == null;
+        }
+    }
+
+    /**
+     * Build the packet data of a ping.
+     *
+     * @param ip IP address of the peer that started the ping
+     * @param port Discovery port of the peer that started the ping
+     * @param pingId ID of the ping, the same on every copy
+     * @param hopLimit The number of times the ping may still be propagated
+     * @return The packet data, of the form "PI:{ip}:{port}:{id}:{hop limit}"
+     */
+    private static byte[] pingMessage(String ip, int port, int pingId, int hopLimit) {
+        return ("PI:" + ip + ":" + port + ":" + pingId + ":" + hopLimit + "\004").getBytes();
+    }
+
+    /**
+     * Propagate a given ping message to a few peers from the table, picked at random.
+     *
+     * Each peer sends the ping on to about log2(n) others, where n is the number of peers it knows,
+     * so a ping reaches most of the network in a few hops while every peer only sends a handful of pings.
      *
      * @param pingMsgData Packet data of ping
      * @param pingIP Ping's sender's IP address
+     * @param relayIP IP address of the peer that propagated the ping to this host
      */
-    private void propagatePing(byte[] pingMsgData, String pingIP) {
-        for (Map.Entry<String, Integer> peer : discoveredPeers.entrySet()) {
-            String peerIP = peer.getKey();
-            int peerPort = peer.getValue();
-
-            // Don't send this ping to its sender
-            if (!peerIP.equals(pingIP)) {
-                try {
-                    sendPing(pingMsgData, peerIP, peerPort);
-                } catch (IOException e) {
-                    Log.e(Messages.ERR_UDP_PKTSEND, e);
-                }
+    private void propagatePing(byte[] pingMsgData, String pingIP, String relayIP) {
+        int fanout = Math.max(Values.PING_FANOUT_MIN, 32 - Integer.numberOfLeadingZeros(discoveredPeers.size()));
+        // Don't send this ping back to its sender, or to the peer we got it from
+        for (PeerTable.Entry peer : discoveredPeers.sample(fanout, pingIP, relayIP)) {
+            try {
+                sendPing(pingMsgData, peer.ip, peer.udpPort);
+            } catch (IOException e) {
+                Log.e(Messages.ERR_UDP_PKTSEND, e);
             }
         }
     }
@@ -197,13 +328,15 @@ public class DiscoveryClient {
      * @param destPort Port number of destination
      */
     private void sendPing(byte[] pingMsgData, String destIP, int destPort) throws IOException {
-//        Log.i(Messages.PING_SEND + Values.ipPortStr(destIP, destPort));
+        if (Log.isDebug())
+            Log.d(Messages.PING_SEND + Values.ipPortStr(destIP, destPort));
 
         InetAddress destAddr = InetAddress.getByName(destIP);
         DatagramPacket pingPkt = new DatagramPacket(pingMsgData, pingMsgData.length, destAddr, destPort);
 
         // Send ping!
         udpSocket.send(pingPkt);
+        PACKETS_SENT.increment();
     }
 
     /**
@@ -213,16 +346,25 @@ public class DiscoveryClient {
      * @param pingPort The ping's sender's port number
      */
     private void sendPong(String pingIP, int pingPort) throws IOException {
-//        Log.i(Messages.PONG_SEND + Values.ipPortStr(pingIP, pingPort));
+        if (Log.isDebug())
+            Log.d(Messages.PONG_SEND + Values.ipPortStr(pingIP, pingPort));
 
         // Construct pong, attaching this host's IP address and port
-        String pongMsgBuilder = "PO:" + Values.ownIPAddr().getHostAddress() + ":" + this.welcomePort + "\004";
+        String pongMsgBuilder = "PO:" + config.advertisedAddress().getHostAddress() + ":" + this.welcomePort + "\004";
         byte[] pongMsgData = pongMsgBuilder.getBytes();
         InetAddress destAddr = InetAddress.getByName(pingIP);
         DatagramPacket pongPkt = new DatagramPacket(pongMsgData, pongMsgData.length, destAddr, pingPort);
 
         // Send pong!
         udpSocket.send(pongPkt);
+        PACKETS_SENT.increment();
+    }
+
+    /**
+     * @return The DHT that runs over this client's socket.
+     */
+    Dht dht() {
+        return dht;
     }
 
     /**
@@ -230,6 +372,15 @@ public class DiscoveryClient {
      * Interrupts all threads and closes all sockets.
      */
     void teardown() {
+        Metrics.get().removeGauge(config.metricsPrefix() + "discovery.peers");
+        sweepTask.cancel();
+        membership.stop();
+        dht.stop();
+        synchronized (pongLock) {
+            if (pongTimeout != null)
+                pongTimeout.cancel();
+            connectingPeer = null;
+        }
         listenerRunning = false;
         listener.interrupt();
         udpSocket.close();
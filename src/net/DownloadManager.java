@@ -0,0 +1,649 @@
+package net;
+
+import msg.Query;
+import msg.Response;
+import util.FileHasher;
+import util.Log;
+import util.Histogram;
+import util.Messages;
+import util.Metrics;
+import util.PeerConfig;
+import util.Values;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class that downloads files requested by this peer, fetching pieces of each file from several peers at once.
+ *
+ * When the first response to one of this peer's queries arrives, the manager keeps collecting responses for
+ * Values.RESPONSE_WINDOW ms. Every peer that responded with the same file digest becomes a source.
+ * The file is then split into pieces of Values.PIECE_SIZE bytes, and each source fetches one piece at a time,
+ * moving on to the next missing piece as soon as it is done, so faster sources end up fetching more pieces.
+ * Once no pieces are left to hand out, idle sources also fetch pieces that are still in flight on slower sources,
+ * and whichever copy arrives first is kept.
+ *
+ * Each piece is checked against the digest from the responses as soon as it arrives, on the hasher's threads.
+ * A piece that doesn't match is fetched again from scratch, and counts as a failed transfer for its source.
+ *
+ * Transfers are resumable. If a connection drops partway through a piece, the bytes that already arrived are kept,
+ * and the source is retried (up to Values.TRANSFER_RETRIES times) for just the rest of the piece.
+ * Which pieces are complete is recorded on disk next to the partial file, in "{download dir}/{name}.{digest}.part.pieces",
+ * so if a download fails or the peer exits, requesting the same file again resumes from the pieces already held.
+ * Both are named after the start of the file's digest too, so files with the same name and different contents
+ * don't share them. Only one download of a file at a time is started; a second one is refused while the first runs.
+ * The record names the digest of the whole file, so it is only resumed for a file with the same contents,
+ * and once every piece is held, the whole file is checked against that digest before it is moved into place.
+ *
+ * Everything except addSource()'s timer runs on the loop thread, so downloads need no locking.
+ */
+class DownloadManager {
+    // Time from sending a query to its first response, in ms, and the rate at which each piece arrived, in KB/s
+    private static final Histogram FIRST_RESPONSE = Metrics.get().histogram("queries.firstResponseMs");
+    private static final Histogram PIECE_THROUGHPUT = Metrics.get().histogram("transfers.pieceKBps");
+
+    private static final byte PIECE_MISSING = 0, PIECE_IN_FLIGHT = 1, PIECE_VERIFYING = 2, PIECE_DONE = 3;
+
+    // The progress record starts with the file size, piece size and file digest, followed by one byte per piece
+    private static final int PROGRESS_HEADER_LENGTH = 8 + 4 + FileHasher.DIGEST_LENGTH;
+
+    private final EventLoop loop;
+    private final FileHasher hasher;
+    private final TransferPool transfers;
+    // Directory that downloaded files are written to; "./obtained/" for the shell's peer
+    private final Path downloadDir;
+
+    // Downloads that are still collecting responses, keyed by query ID
+    private final Map<Integer, Download> collecting;
+    // Partial files of the downloads that have started and not ended yet
+    private final Set<Path> active;
+
+    DownloadManager(EventLoop loop, PeerConfig config, FileHasher hasher) {
+        this.loop = loop;
+        this.hasher = hasher;
+        this.transfers = new TransferPool(loop, config.bindAddress(0));
+        this.downloadDir = config.downloadDir;
+        this.collecting = new HashMap<>();
+        this.active = new HashSet<>();
+    }
+
+    /**
+     * Add a peer that responded to one of this peer's queries as a source for the file.
+     * The first response for a query starts the collection window, after which the download starts.
+     * This method can be called from any thread; the source is added on the loop thread.
+     *
+     * @param query The query that this peer sent.
+     * @param response A response to that query.
+     */
+    void addSource(final Query query, final Response response) {
+        loop.runInLoop(new Runnable() {
+            @Override
+            public void run() {
+                addSourceInLoop(query, response);
+            }
+        });
+    }
+
+    private void addSourceInLoop(final Query query, Response response) {
+        // The collection window may have ended while the response was on its way here.
+        if (query.isClosed())
+            return;
+
+        // The download is written under the response's filename, so it must be the one asked for, and a plain name.
+        // Every path into the manager goes through here, whether the response came from a neighbor or the DHT.
+        if (!response.getFilename().equals(query.getFilename()) || !isPlainName(response.getFilename())) {
+            Log.e(Messages.DL_BADNAME(response));
+            return;
+        }
+
+        Download download = collecting.get(query.getId());
+        if (download == null) {
+            FIRST_RESPONSE.record((System.nanoTime() - query.getCreatedNanos()) / 1000000);
+            download = new Download(response);
+            collecting.put(query.getId(), download);
+
+            loop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Stop accepting responses for this query, then start downloading.
+                            query.close();
+                            collecting.remove(query.getId()).start();
+                        }
+                    });
+                }
+            }, Values.RESPONSE_WINDOW);
+        }
+
+        // Responses with a different digest are for a different file, so they can't be mixed in.
+        if (!Arrays.equals(response.getFileDigest(), download.digests.getFileDigest())) {
+            Log.e(Messages.DL_DIGESTMISMATCH(response));
+            return;
+        }
+        download.addSource(new InetSocketAddress(response.getOrigin(), response.getPort()));
+    }
+
+    /**
+     * @param filename A filename from a response.
+     * @return Whether the name can be resolved in the download directory without leaving it.
+     */
+    private static boolean isPlainName(String filename) {
+        return !filename.isEmpty() && !filename.contains("/") && !filename.contains("\\")
+                && !filename.contains("..") && filename.indexOf('\0') < 0;
+    }
+
+    /**
+     * A peer that has the file, and what it is currently fetching.
+     */
+    private static class Source {
+        final InetSocketAddress addr;
+
+        // The request for a piece from this source and the index of that piece, if it isn't idle
+        ReceiveConnection.Request current;
+        int piece;
+        long requestTime;
+
+        // Totals over every piece this source has sent, used to compare the speed of sources
+        long bytesReceived, busyTime;
+
+        // Number of failed transfers from this source since it last sent a whole piece,
+        // and whether it is waiting to be retried after one
+        int failures;
+        boolean retryPending;
+
+        Source(InetSocketAddress addr) {
+            this.addr = addr;
+        }
+
+        /**
+         * @return The average rate at which this source sent pieces, in bytes per ms, or -1 if it hasn't sent any.
+         */
+        double rate() {
+            return bytesReceived == 0 ? -1 : (double) bytesReceived / Math.max(busyTime, 1);
+        }
+    }
+
+    /**
+     * A single file being downloaded from one or more sources.
+     */
+    private class Download implements ReceiveConnection.Listener {
+        final String filename;
+        final long size;
+        final int pieceCount;
+        // The first response, which holds the digests that every piece is checked against
+        final Response digests;
+
+        final List<Source> sources;
+        final byte[] pieceState;
+        // Number of connections currently fetching each piece
+        final byte[] pieceHolders;
+        // Number of bytes from the start of each piece that are already in the output file
+        final long[] pieceProgress;
+        int piecesDone;
+        // Whether the download has finished or failed, so sources shouldn't be retried
+        boolean ended;
+
+        Path outputPath, tempPath, progressPath;
+        FileChannel outputFile, progressFile;
+
+        Download(Response response) {
+            this.filename = response.getFilename();
+            this.size = response.getSize();
+            this.digests = response;
+            this.pieceCount = (int) ((size + Values.PIECE_SIZE - 1) / Values.PIECE_SIZE);
+            this.sources = new ArrayList<>();
+            this.pieceState = new byte[pieceCount];
+            this.pieceHolders = new byte[pieceCount];
+            this.pieceProgress = new long[pieceCount];
+        }
+
+        void addSource(InetSocketAddress addr) {
+            if (sources.size() >= Values.MAX_DOWNLOAD_SOURCES)
+                return;
+            for (Source s : sources) {
+                if (s.addr.equals(addr))
+                    return;
+            }
+            sources.add(new Source(addr));
+            Log.i(Messages.DL_SOURCE(filename, addr.getAddress().getHostAddress()));
+        }
+
+        /**
+         * Open the output file and start fetching from every source.
+         * If an earlier download of the same file left a partial file behind, the pieces it holds are kept;
+         * otherwise, space is reserved for the whole file.
+         */
+        void start() {
+            // The first 8 bytes of the digest are plenty to tell apart the versions of a file that are around at once.
+            StringBuilder digest = new StringBuilder();
+            for (int i = 0; i < 8; i++)
+                digest.append(String.format("%02x", digests.getFileDigest()[i]));
+            outputPath = downloadDir.resolve(filename);
+            tempPath = downloadDir.resolve(filename + "." + digest + ".part");
+            progressPath = downloadDir.resolve(filename + "." + digest + ".part.pieces");
+            if (!active.add(tempPath)) {
+                ended = true;
+                Log.e(Messages.DL_INPROGRESS(filename));
+                return;
+            }
+
+            Log.i(Messages.DL_START(filename, sources.size()));
+            try {
+                if (loadProgress()) {
+                    Log.i(Messages.DL_RESUME(filename, piecesDone, pieceCount));
+                } else {
+                    // Reserve space for the whole file up front, so the filesystem can lay it out in one piece.
+                    try (RandomAccessFile raf = new RandomAccessFile(tempPath.toFile(), "rw")) {
+                        raf.setLength(size);
+                    }
+                    ByteBuffer header = ByteBuffer.allocate(PROGRESS_HEADER_LENGTH + pieceCount);
+                    header.putLong(size).putInt(Values.PIECE_SIZE).put(digests.getFileDigest());
+                    header.rewind();
+                    Files.write(progressPath, header.array());
+                }
+                outputFile = FileChannel.open(tempPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                progressFile = FileChannel.open(progressPath, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                Log.e(Messages.ERR_FILEWRITE, e);
+                close();
+                return;
+            }
+
+            if (piecesDone == pieceCount) {
+                verifyFile();
+                return;
+            }
+            assignIdleSources();
+        }
+
+        /**
+         * Read which pieces an earlier download of this file already completed.
+         * The record is only used if it was written for a file with the same digest and size,
+         * split into pieces of the same size.
+         *
+         * @return true if a partial file can be resumed, false if the download must start from scratch.
+         * @throws IOException if the record could not be read.
+         */
+        boolean loadProgress() throws IOException {
+            if (!Files.exists(tempPath) || !Files.exists(progressPath) || Files.size(tempPath) != size)
+                return false;
+
+            ByteBuffer record = ByteBuffer.wrap(Files.readAllBytes(progressPath));
+            if (record.remaining() != PROGRESS_HEADER_LENGTH + pieceCount
+                    || record.getLong() != size || record.getInt() != Values.PIECE_SIZE)
+                return false;
+            byte[] fileDigest = new byte[FileHasher.DIGEST_LENGTH];
+            record.get(fileDigest);
+            if (!Arrays.equals(fileDigest, digests.getFileDigest()))
+                return false;
+
+            for (int i = 0; i < pieceCount; i++) {
+                if (record.get() != 0) {
+                    pieceState[i] = PIECE_DONE;
+                    pieceProgress[i] = pieceLength(i);
+                    piecesDone++;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Record on disk that a piece is complete.
+         *
+         * @param piece Index of the piece.
+         */
+        void saveProgress(int piece) {
+            try {
+                progressFile.write(ByteBuffer.wrap(new byte[] { 1 }), PROGRESS_HEADER_LENGTH + piece);
+            } catch (IOException e) {
+                Log.e(Messages.ERR_FILEWRITE, e);
+            }
+        }
+
+        long pieceStart(int piece) {
+            return (long) piece * Values.PIECE_SIZE;
+        }
+
+        long pieceLength(int piece) {
+            return Math.min(Values.PIECE_SIZE, size - pieceStart(piece));
+        }
+
+        /**
+         * Give a piece to every source that isn't fetching one.
+         */
+        void assignIdleSources() {
+            for (Source s : new ArrayList<>(sources)) {
+                // Assigning a piece to one source may drop another, so check that it is still a source.
+                if (s.current == null && !s.retryPending && sources.contains(s))
+                    assignPiece(s);
+            }
+        }
+
+        /**
+         * Give an idle source a piece to fetch: the first missing piece if there is one,
+         * otherwise a piece that is only in flight on a slower source.
+         * If there is nothing worth fetching, the source stays idle.
+         *
+         * @param source The idle source.
+         */
+        void assignPiece(Source source) {
+            for (int i = 0; i < pieceCount; i++) {
+                if (pieceState[i] == PIECE_MISSING) {
+                    request(source, i);
+                    return;
+                }
+            }
+
+            // Nothing is missing, so help out with the piece held by the slowest source.
+            Source slowest = null;
+            for (Source s : sources) {
+                if (s == source || s.current == null || pieceHolders[s.piece] > 1)
+                    continue;
+                if (slowest == null || s.rate() < slowest.rate())
+                    slowest = s;
+            }
+            if (slowest != null && (slowest.rate() < 0 || slowest.rate() < source.rate()))
+                request(source, slowest.piece);
+        }
+
+        /**
+         * Fetch the part of a piece that isn't in the output file yet from a source.
+         *
+         * @param source The source to fetch from.
+         * @param piece Index of the piece.
+         */
+        void request(Source source, int piece) {
+            long offset = pieceStart(piece) + pieceProgress[piece];
+            long length = pieceLength(piece) - pieceProgress[piece];
+
+            ReceiveConnection.Request fetch;
+            try {
+                fetch = transfers.fetch(source.addr, filename, offset, length, outputFile, this);
+            } catch (IOException e) {
+                Log.e(Messages.ERR_SOCKOPEN, e);
+                dropSource(source);
+                return;
+            }
+
+            pieceState[piece] = PIECE_IN_FLIGHT;
+            pieceHolders[piece]++;
+            source.current = fetch;
+            source.piece = piece;
+            source.requestTime = System.currentTimeMillis();
+            if (Log.isDebug())
+                Log.d(Messages.REQ_TFER(filename, piece, source.addr.getAddress().getHostAddress()));
+        }
+
+        Source sourceOf(ReceiveConnection.Request request) {
+            for (Source s : sources) {
+                if (s.current == request)
+                    return s;
+            }
+            return null;
+        }
+
+        @Override
+        public void onReceived(ReceiveConnection.Request request) {
+            Source source = sourceOf(request);
+            if (source == null)
+                return;
+            int piece = source.piece;
+            source.current = null;
+            source.failures = 0;
+            long elapsed = System.currentTimeMillis() - source.requestTime;
+            source.bytesReceived += request.length;
+            source.busyTime += elapsed;
+            // Bytes per ms is the same as KB per s.
+            PIECE_THROUGHPUT.record(request.length / Math.max(elapsed, 1));
+            pieceHolders[piece]--;
+
+            if (pieceState[piece] == PIECE_IN_FLIGHT) {
+                pieceState[piece] = PIECE_VERIFYING;
+                pieceProgress[piece] = pieceLength(piece);
+                verify(piece, source);
+
+                // Any other copy of this piece that is still in flight is no longer needed.
+                for (Source s : sources) {
+                    if (s.current != null && s.piece == piece) {
+                        s.current.cancel();
+                        s.current = null;
+                        pieceHolders[piece]--;
+                    }
+                }
+            }
+
+            assignIdleSources();
+        }
+
+        /**
+         * Check a piece that has arrived against its digest, off the loop thread.
+         *
+         * @param piece Index of the piece.
+         * @param source The source that sent (the end of) the piece.
+         */
+        void verify(final int piece, final Source source) {
+            hasher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean matches;
+                    try {
+                        byte[] digest = FileHasher.hashRange(outputFile, pieceStart(piece), pieceLength(piece));
+                        matches = Arrays.equals(digest, digests.getPieceDigest(piece));
+                    } catch (IOException e) {
+                        // The file may have been closed because the download ended in the meantime.
+                        matches = false;
+                    }
+
+                    final boolean verified = matches;
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            onVerified(piece, source, verified);
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * Record the outcome of checking a piece. Called on the loop thread.
+         *
+         * @param piece Index of the piece.
+         * @param source The source that sent (the end of) the piece.
+         * @param verified Whether the piece matched its digest.
+         */
+        void onVerified(int piece, Source source, boolean verified) {
+            if (ended)
+                return;
+
+            if (verified) {
+                pieceState[piece] = PIECE_DONE;
+                piecesDone++;
+                saveProgress(piece);
+                if (piecesDone == pieceCount) {
+                    verifyFile();
+                    return;
+                }
+            } else {
+                // Throw the whole piece away, since there is no telling which part of it is corrupt.
+                Log.e(Messages.DL_PIECEBAD(filename, piece, source.addr.getAddress().getHostAddress()));
+                pieceState[piece] = PIECE_MISSING;
+                pieceProgress[piece] = 0;
+                if (++source.failures > Values.TRANSFER_RETRIES && sources.contains(source)) {
+                    dropSource(source);
+                    return;
+                }
+            }
+            assignIdleSources();
+        }
+
+        @Override
+        public void onFailed(ReceiveConnection.Request request) {
+            final Source source = sourceOf(request);
+            if (source == null)
+                return;
+
+            // Keep whatever part of the piece arrived before the connection dropped.
+            int piece = source.piece;
+            pieceProgress[piece] = Math.max(pieceProgress[piece], request.offset + request.getReceived() - pieceStart(piece));
+
+            if (++source.failures > Values.TRANSFER_RETRIES) {
+                dropSource(source);
+                return;
+            }
+
+            // Let other sources pick up the piece in the meantime, then retry this source after a growing delay.
+            releasePiece(source);
+            source.retryPending = true;
+            Log.e(Messages.DL_RETRY(filename, source.addr.getAddress().getHostAddress(), source.failures));
+            loop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            source.retryPending = false;
+                            if (!ended && sources.contains(source) && source.current == null)
+                                assignPiece(source);
+                        }
+                    });
+                }
+            }, (long) Values.TRANSFER_RETRY_DELAY * source.failures);
+            assignIdleSources();
+        }
+
+        /**
+         * Stop fetching a source's current piece, marking it missing again if no other source is fetching it.
+         *
+         * @param source The source whose connection ended.
+         */
+        void releasePiece(Source source) {
+            if (source.current == null)
+                return;
+            int piece = source.piece;
+            source.current = null;
+            if (--pieceHolders[piece] == 0 && pieceState[piece] == PIECE_IN_FLIGHT)
+                pieceState[piece] = PIECE_MISSING;
+        }
+
+        /**
+         * Stop using a source that failed, handing its piece to the sources that are left.
+         *
+         * @param source The source that failed.
+         */
+        void dropSource(Source source) {
+            Log.e(Messages.DL_SOURCEFAIL(filename, source.addr.getAddress().getHostAddress()));
+            sources.remove(source);
+            releasePiece(source);
+
+            if (sources.isEmpty()) {
+                fail();
+                return;
+            }
+            assignIdleSources();
+        }
+
+        /**
+         * Check the whole file against its digest, off the loop thread, once every piece is held.
+         * Each piece was checked as it arrived, but pieces resumed from an earlier download were only checked then,
+         * and the piece digests themselves came from a response, so this is what vouches for the file as a whole.
+         */
+        void verifyFile() {
+            ended = true;
+            hasher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean matches;
+                    try {
+                        matches = Arrays.equals(FileHasher.hashRange(outputFile, 0, size), digests.getFileDigest());
+                    } catch (IOException e) {
+                        Log.e(Messages.ERR_FILEWRITE, e);
+                        matches = false;
+                    }
+
+                    final boolean verified = matches;
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (verified)
+                                finish();
+                            else
+                                discard();
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * Move the complete file from its temporary path to its place in the download directory.
+         */
+        void finish() {
+            close();
+            try {
+                Files.move(tempPath, outputPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                Files.deleteIfExists(progressPath);
+                Log.i(Messages.DL_FINISHED(filename, size));
+            } catch (IOException e) {
+                Log.e(Messages.ERR_FILEWRITE, e);
+            }
+        }
+
+        /**
+         * Throw away a complete file that doesn't match its digest, along with its record,
+         * so a later request for the file starts from scratch instead of resuming the same bad pieces.
+         */
+        void discard() {
+            Log.e(Messages.DL_FILEBAD(filename));
+            close();
+            try {
+                Files.deleteIfExists(tempPath);
+                Files.deleteIfExists(progressPath);
+            } catch (IOException e) {
+                Log.e(Messages.ERR_FILEWRITE, e);
+            }
+        }
+
+        /**
+         * Give up on the download, since no sources are left.
+         * The partial file and its record are kept, so a later request for the file can resume it.
+         */
+        void fail() {
+            Log.e(Messages.DL_FAILED(filename, piecesDone, pieceCount));
+            close();
+        }
+
+        /**
+         * End the download and close whichever of its files are open, leaving them on disk,
+         * so another download of the same file can start.
+         */
+        void close() {
+            ended = true;
+            active.remove(tempPath);
+            try {
+                if (outputFile != null)
+                    outputFile.close();
+                if (progressFile != null)
+                    progressFile.close();
+            } catch (IOException e) {
+                Log.e(Messages.ERR_FILEWRITE, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package net;
+
+import util.HashedWheelTimer;
+import util.Log;
+import util.Messages;
+import util.Values;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Single-threaded I/O loop that multiplexes every socket owned by a peer over one Selector.
+ *
+ * Channels are registered together with a Handler, which is called on the loop thread whenever
+ * one of the channel's interest operations is ready.
+ * Other threads must never touch the selector directly; instead they hand work to the loop with execute().
+ *
+ * In ExecutionMode.THREADS, connections don't register with the selector. They do blocking I/O on threads
+ * started with spawn() instead, and the loop thread only runs the tasks handed to it.
+ */
+class EventLoop {
+    /**
+     * Callback for a channel registered with the loop.
+     */
+    interface Handler {
+        /**
+         * Handle the ready operations of a selection key. Called on the loop thread.
+         *
+         * @param key The key whose channel is ready.
+         * @throws IOException if the channel failed, in which case the key is cancelled and the channel closed.
+         */
+        void handleEvent(SelectionKey key) throws IOException;
+    }
+
+    /**
+     * Callback for a listening channel served by the loop.
+     */
+    interface Acceptor {
+        /**
+         * Set up a newly accepted channel.
+         *
+         * @param channel The accepted channel, still in blocking mode.
+         * @throws IOException if the channel could not be set up.
+         */
+        void accepted(SocketChannel channel) throws IOException;
+
+        /**
+         * Handle a failure to accept or set up a channel. The listening channel keeps accepting.
+         *
+         * @param e The failure.
+         */
+        void failed(IOException e);
+    }
+
+    private final Selector selector;
+    private final Queue<Runnable> pendingTasks;
+
+    // One timer is shared by everything on this loop for timed work such as heartbeats and timeouts
+    private final HashedWheelTimer timer;
+
+    // Different threads access this, so make it volatile
+    private volatile boolean running;
+
+    // Runs the blocking I/O of connections in ExecutionMode.THREADS, null in ExecutionMode.EVENT_LOOP
+    private final ExecutorService connectionThreads;
+
+    /**
+     * Thread that runs the loop.
+     */
+    final Thread thread;
+
+    /**
+     * Create a loop. It doesn't run until start() is called.
+     *
+     * @param mode How connections driven by this loop do their I/O.
+     * @throws IOException if the selector could not be opened.
+     */
+    EventLoop(ExecutionMode mode) throws IOException {
+        connectionThreads = mode == ExecutionMode.THREADS ? newConnectionThreads() : null;
+        selector = Selector.open();
+        pendingTasks = new ConcurrentLinkedQueue<>();
+        timer = new HashedWheelTimer("p2p-timer", Values.TIMER_TICK, Values.TIMER_WHEEL_SIZE);
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "p2p-event-loop");
+        // The loop should not keep the peer alive.
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Create the executor for connection threads: one virtual thread per task if the JVM has virtual threads,
+     * or a pool of platform threads if not.
+     */
+    private static ExecutorService newConnectionThreads() {
+        try {
+            // Virtual threads only exist from Java 21 on, but the peer must still build and run on older JVMs,
+            // so look them up reflectively.
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService executor = (ExecutorService) factory.invoke(null);
+            Log.i(Messages.EXEC_THREADS(true));
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            Log.i(Messages.EXEC_THREADS(false));
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "p2p-connection");
+                    // Connection threads should not keep the peer alive.
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns whether connections do blocking I/O on threads of their own, i.e. the loop runs in ExecutionMode.THREADS.
+     */
+    boolean isThreaded() {
+        return connectionThreads != null;
+    }
+
+    /**
+     * Run a task that does blocking I/O on a connection thread. Only valid in ExecutionMode.THREADS.
+     *
+     * @param task The task to run.
+     */
+    void spawn(Runnable task) {
+        connectionThreads.execute(task);
+    }
+
+    /**
+     * Accept connections on a listening channel for as long as it is open: as the channel becomes ready in
+     * ExecutionMode.EVENT_LOOP, or with blocking accepts on a thread of its own in ExecutionMode.THREADS.
+     *
+     * @param server The listening channel, which must be bound and in blocking mode.
+     * @param acceptor The callback for accepted channels. Called on the loop thread or the listening channel's thread.
+     */
+    void serve(final ServerSocketChannel server, final Acceptor acceptor) {
+        if (isThreaded()) {
+            spawn(new Runnable() {
+                @Override
+                public void run() {
+                    while (server.isOpen()) {
+                        try {
+                            acceptor.accepted(server.accept());
+                        } catch (ClosedChannelException e) {
+                            // The channel was closed while waiting to accept, so the peer is shutting down.
+                            return;
+                        } catch (IOException e) {
+                            acceptor.failed(e);
+                        }
+                    }
+                }
+            });
+            return;
+        }
+
+        register(server, SelectionKey.OP_ACCEPT, new Handler() {
+            @Override
+            public void handleEvent(SelectionKey key) {
+                try {
+                    SocketChannel channel = server.accept();
+                    if (channel != null)
+                        acceptor.accepted(channel);
+                } catch (IOException e) {
+                    acceptor.failed(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns whether the calling thread is the loop thread.
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run a task on the loop thread, waking the selector up if necessary.
+     *
+     * @param task The task to run.
+     */
+    void execute(Runnable task) {
+        pendingTasks.add(task);
+        if (!inLoop())
+            selector.wakeup();
+    }
+
+    /**
+     * Run a task on the loop thread: right away if called from the loop thread, or as soon as the loop gets to it if not.
+     *
+     * @param task The task to run.
+     */
+    void runInLoop(Runnable task) {
+        if (inLoop())
+            task.run();
+        else
+            execute(task);
+    }
+
+    /**
+     * Schedule a task to run once on the loop's shared timer.
+     * The task runs on the timer thread, not the loop thread, so it must be short and only use thread-safe operations.
+     *
+     * @param task The task to schedule.
+     * @param delay Delay before the task runs, in ms
+     * @return A handle to cancel the task with.
+     */
+    HashedWheelTimer.Timeout schedule(Runnable task, long delay) {
+        return timer.schedule(task, delay);
+    }
+
+    /**
+     * Schedule a periodic task on the loop's shared timer.
+     * The task runs on the timer thread, not the loop thread, so it must be short and only use thread-safe operations.
+     *
+     * @param task The task to schedule.
+     * @param delay Delay before the first run, in ms
+     * @param period Time between runs, in ms
+     * @return A handle to cancel the task with.
+     */
+    HashedWheelTimer.Timeout schedule(Runnable task, long delay, long period) {
+        return timer.schedule(task, delay, period);
+    }
+
+    /**
+     * Register a channel with the loop. The channel is switched to non-blocking mode.
+     *
+     * @param channel The channel to register.
+     * @param ops The initial interest set.
+     * @param handler The handler to call when the channel is ready.
+     */
+    void register(final SelectableChannel channel, final int ops, final Handler handler) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.configureBlocking(false);
+                    channel.register(selector, ops, handler);
+                } catch (ClosedChannelException ignored) {
+                    // The channel was closed before it could be registered, so there is nothing left to do.
+                } catch (IOException e) {
+                    Log.e(Messages.ERR_LOOP_REGISTER, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Add or remove interest operations of a channel registered with this loop.
+     *
+     * @param channel The registered channel.
+     * @param ops The operations to change.
+     * @param enable Whether to add (true) or remove (false) the operations.
+     */
+    void setInterest(final SelectableChannel channel, final int ops, final boolean enable) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                SelectionKey key = channel.keyFor(selector);
+                if (key == null || !key.isValid())
+                    return;
+                try {
+                    key.interestOps(enable ? key.interestOps() | ops : key.interestOps() & ~ops);
+                } catch (CancelledKeyException ignored) {}
+            }
+        };
+
+        if (inLoop())
+            task.run();
+        else
+            execute(task);
+    }
+
+    /**
+     * Stop the loop and close the selector.
+     * Channels registered with the loop are not closed; their owners should tear them down.
+     */
+    void shutdown() {
+        timer.stop();
+        if (connectionThreads != null)
+            connectionThreads.shutdownNow();
+        running = false;
+        selector.wakeup();
+    }
+
+    private void loop() {
+        while (running) {
+            // Run tasks handed over by other threads (or queued while handling the last events)
+            Runnable task;
+            while ((task = pendingTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(Messages.ERR_LOOP_TASK, e);
+                }
+            }
+
+            try {
+                selector.select();
+            } catch (IOException e) {
+                Log.e(Messages.ERR_LOOP_SELECT, e);
+                continue;
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (!key.isValid())
+                    continue;
+
+                Handler handler = (Handler) key.attachment();
+                try {
+                    handler.handleEvent(key);
+                } catch (CancelledKeyException ignored) {
+                    // The channel was closed by its owner while handling the event.
+                } catch (IOException | RuntimeException e) {
+                    Log.e(Messages.ERR_LOOP_TASK, e);
+                    key.cancel();
+                    try {
+                        key.channel().close();
+                    } catch (IOException closeErr) {
+                        Log.e(Messages.ERR_SOCKCLOSE, closeErr);
+                    }
+                }
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.e(Messages.ERR_LOOP_SELECT, e);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package net;
+
+/**
+ * How a peer runs the I/O of its connections. Chosen once, when the peer starts.
+ */
+public enum ExecutionMode {
+    /**
+     * Every socket is non-blocking and driven by the peer's single EventLoop thread.
+     */
+    EVENT_LOOP,
+
+    /**
+     * Every connection and listening socket gets a thread of its own, which uses plain blocking calls.
+     * Virtual threads are used if the JVM supports them (Java 21 and later), platform threads otherwise.
+     * The EventLoop thread still runs everything that isn't I/O, such as downloads and routing,
+     * so that work needs no locking in either mode.
+     */
+    THREADS
+}
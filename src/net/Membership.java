@@ -0,0 +1,488 @@
+package net;
+
+import util.HashedWheelTimer;
+import util.Log;
+import util.Messages;
+import util.PeerConfig;
+import util.Values;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SWIM-style gossip membership and failure detection, run over the discovery socket.
+ *
+ * Every Values.GOSSIP_INTERVAL, the peer probes one member, taking members in a shuffled round-robin order.
+ * A probe is a "SW:PING" packet that the member answers with "SW:ACK". If no ack arrives within
+ * Values.GOSSIP_PROBE_TIMEOUT, the peer asks Values.GOSSIP_INDIRECT other members to probe it instead with "SW:REQ",
+ * and they relay the member's ack back. A member that isn't acked by the end of the interval is suspected,
+ * and a suspected member that doesn't refute the suspicion within Values.GOSSIP_SUSPECT_TIMEOUT is declared dead.
+ *
+ * Changes of a member's state are not sent on their own, but piggybacked on probes and acks, a few at a time.
+ * Each change is sent about 3 log2(n) times before being dropped, so it reaches every member with high probability
+ * while each peer sends a constant number of packets per interval, whatever the size of the network.
+ *
+ * Every member has an incarnation number that only it raises, to refute a suspicion of itself. A change carrying
+ * a higher incarnation overrides one with a lower one. Hearing from a member directly always proves it alive.
+ *
+ * Packets are of the form "SW:{type}:{seq}:{sender's incarnation}[:{target IP}:{target port}]:{changes}",
+ * where changes are "{ip}/{port}/{state}/{incarnation}" joined by commas.
+ *
+ * All state is guarded by this object's lock, since the discovery listener and the timer thread both use it.
+ */
+class Membership {
+    enum State { ALIVE, SUSPECT, DEAD }
+
+    /**
+     * Sends a packet over the discovery socket.
+     */
+    interface Sender {
+        void send(byte[] data, String ip, int port) throws IOException;
+    }
+
+    /**
+     * What this peer believes about another member.
+     */
+    private static class Member {
+        final String ip;
+        int udpPort;
+        State state;
+        int incarnation;
+        // When the member was suspected or declared dead, in ms
+        long changedAt;
+
+        Member(String ip, int udpPort, State state, int incarnation, long changedAt) {
+            this.ip = ip;
+            this.udpPort = udpPort;
+            this.state = state;
+            this.incarnation = incarnation;
+            this.changedAt = changedAt;
+        }
+    }
+
+    /**
+     * A change of a member's state waiting to be piggybacked.
+     */
+    private static class Update {
+        final String ip;
+        final int udpPort;
+        final State state;
+        final int incarnation;
+        int sendsLeft;
+
+        Update(String ip, int udpPort, State state, int incarnation, int sendsLeft) {
+            this.ip = ip;
+            this.udpPort = udpPort;
+            this.state = state;
+            this.incarnation = incarnation;
+            this.sendsLeft = sendsLeft;
+        }
+
+        @Override
+        public String toString() {
+            return ip + "/" + udpPort + "/" + state.ordinal() + "/" + incarnation;
+        }
+    }
+
+    /**
+     * A probe sent on behalf of another member, whose ack must be relayed back to it.
+     */
+    private static class Relay {
+        final String ip;
+        final int port;
+        final int seq;
+
+        Relay(String ip, int port, int seq) {
+            this.ip = ip;
+            this.port = port;
+            this.seq = seq;
+        }
+    }
+
+    private final Peer peer;
+    private final PeerTable peers;
+    private final Sender sender;
+    private final EventLoop loop;
+    private final PeerConfig config;
+    private final HashedWheelTimer.Timeout tickTask;
+
+    private final Map<String, Member> members = new LinkedHashMap<>();
+    private final Map<String, Update> updates = new HashMap<>();
+    private final Map<Integer, Relay> relays = new HashMap<>();
+    private List<Member> probeOrder = new ArrayList<>();
+    private int probeIndex;
+    private int incarnation;
+    private int nextSeq;
+
+    // The member probed this interval, the sequence number of the probe, and whether it has been acked
+    private Member probeTarget;
+    private int probeSeq;
+    private boolean probeAcked;
+
+    /**
+     * Start probing members.
+     *
+     * @param peer The peer whose neighbor connections are closed when the neighbor is declared dead.
+     * @param peers The discovery peer table, kept in step with the membership.
+     * @param sender Sends packets over the discovery socket.
+     * @param loop Loop whose shared timer runs the protocol.
+     * @param config The peer's configuration, which gives its own address and discovery port.
+     */
+    Membership(Peer peer, PeerTable peers, Sender sender, EventLoop loop, PeerConfig config) {
+        this.peer = peer;
+        this.peers = peers;
+        this.sender = sender;
+        this.loop = loop;
+        this.config = config;
+        this.tickTask = loop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, Values.GOSSIP_INTERVAL, Values.GOSSIP_INTERVAL);
+    }
+
+    /**
+     * Add a member that discovery heard from directly, if it isn't a live member already.
+     *
+     * @param ip The member's IP address.
+     * @param port The member's discovery port.
+     */
+    synchronized void join(String ip, int port) {
+        alive(ip, port, 0);
+    }
+
+    /**
+     * Handle a membership packet. Packets that are missing fields are dropped; fields that aren't numbers where
+     * numbers are expected throw a NumberFormatException, which the caller logs.
+     *
+     * @param parts The packet's message, split at colons.
+     * @param fromIP IP address the packet came from.
+     * @param fromPort Port the packet came from.
+     */
+    void process(String[] parts, String fromIP, int fromPort) {
+        if (parts.length < 4 || parts[1].equals("REQ") && parts.length < 6)
+            return;
+        int seq = Integer.parseInt(parts[2]);
+        int fromIncarnation = Integer.parseInt(parts[3]);
+        List<String> failed = new ArrayList<>();
+
+        synchronized (this) {
+            // Hearing from a member directly proves it is alive.
+            alive(fromIP, fromPort, fromIncarnation);
+            switch (parts[1]) {
+                case "PING":
+                    send("ACK", seq, fromIP, fromPort, "");
+                    applyUpdates(parts.length > 4 ? parts[4] : "", failed);
+                    break;
+                case "REQ":
+                    String targetIP = parts[4];
+                    int targetPort = Integer.parseInt(parts[5]);
+                    final int relaySeq = nextSeq++;
+                    relays.put(relaySeq, new Relay(fromIP, fromPort, seq));
+                    send("PING", relaySeq, targetIP, targetPort, "");
+                    // Forget the relay once the requester has stopped waiting for the ack.
+                    loop.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (Membership.this) {
+                                relays.remove(relaySeq);
+                            }
+                        }
+                    }, Values.GOSSIP_INTERVAL);
+                    applyUpdates(parts.length > 6 ? parts[6] : "", failed);
+                    break;
+                case "ACK":
+                    Relay relay = relays.remove(seq);
+                    if (relay != null)
+                        send("ACK", relay.seq, relay.ip, relay.port, "");
+                    else if (probeTarget != null && seq == probeSeq)
+                        probeAcked = true;
+                    applyUpdates(parts.length > 4 ? parts[4] : "", failed);
+                    break;
+            }
+        }
+        peers.heard(fromIP, fromPort, 0);
+        notifyFailed(failed);
+    }
+
+    /**
+     * Run one protocol interval: judge the last probe, declare long-suspected members dead, and probe the next member.
+     */
+    private void tick() {
+        List<String> failed = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            if (probeTarget != null && !probeAcked && probeTarget.state == State.ALIVE) {
+                Member m = probeTarget;
+                m.state = State.SUSPECT;
+                m.changedAt = now;
+                Log.i(Messages.MEMBER_SUSPECT(m.ip));
+                queue(m);
+            }
+            probeTarget = null;
+
+            Iterator<Member> it = members.values().iterator();
+            while (it.hasNext()) {
+                Member m = it.next();
+                if (m.state == State.SUSPECT && now - m.changedAt >= Values.GOSSIP_SUSPECT_TIMEOUT) {
+                    m.state = State.DEAD;
+                    m.changedAt = now;
+                    queue(m);
+                    failed.add(m.ip);
+                } else if (m.state == State.DEAD && now - m.changedAt >= Values.GOSSIP_DEAD_RETENTION) {
+                    // Keep the dead for a while, so stale news of them being alive doesn't bring them back.
+                    it.remove();
+                }
+            }
+
+            final Member target = nextTarget();
+            if (target != null) {
+                probeTarget = target;
+                probeSeq = nextSeq++;
+                probeAcked = false;
+                send("PING", probeSeq, target.ip, target.udpPort, "");
+
+                final int seq = probeSeq;
+                loop.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        probeIndirectly(target, seq);
+                    }
+                }, Values.GOSSIP_PROBE_TIMEOUT);
+            }
+        }
+        notifyFailed(failed);
+    }
+
+    /**
+     * If a probe hasn't been acked yet, ask a few other members to probe its target.
+     *
+     * @param target The probed member.
+     * @param seq The probe's sequence number.
+     */
+    private synchronized void probeIndirectly(Member target, int seq) {
+        if (probeTarget != target || probeSeq != seq || probeAcked)
+            return;
+
+        List<Member> helpers = new ArrayList<>();
+        for (Member m : members.values()) {
+            if (m != target && m.state == State.ALIVE)
+                helpers.add(m);
+        }
+        Collections.shuffle(helpers);
+        for (Member m : helpers.subList(0, Math.min(Values.GOSSIP_INDIRECT, helpers.size())))
+            send("REQ", seq, m.ip, m.udpPort, ":" + target.ip + ":" + target.udpPort);
+    }
+
+    /**
+     * @return The next member to probe, or null if there are none. Starts a new shuffled round when a round ends.
+     */
+    private Member nextTarget() {
+        while (true) {
+            if (probeIndex >= probeOrder.size()) {
+                probeOrder = new ArrayList<>();
+                for (Member m : members.values()) {
+                    if (m.state != State.DEAD)
+                        probeOrder.add(m);
+                }
+                if (probeOrder.isEmpty())
+                    return null;
+                Collections.shuffle(probeOrder);
+                probeIndex = 0;
+            }
+            Member m = probeOrder.get(probeIndex++);
+            // Skip members that died or were forgotten since the round started.
+            if (m.state != State.DEAD && members.get(m.ip) == m)
+                return m;
+        }
+    }
+
+    /**
+     * Apply the changes piggybacked on a packet, and pass on those that were news.
+     * Malformed changes are skipped, so the members already declared dead by earlier ones still get reported.
+     *
+     * @param changes The changes, as sent.
+     * @param failed Collects the IP addresses of members newly declared dead.
+     */
+    private void applyUpdates(String changes, List<String> failed) {
+        if (changes.isEmpty())
+            return;
+        for (String change : changes.split(",")) {
+            String[] fields = change.split("/");
+            if (fields.length != 4)
+                continue;
+            String ip = fields[0];
+            int port, stateIndex, inc;
+            try {
+                port = Integer.parseInt(fields[1]);
+                stateIndex = Integer.parseInt(fields[2]);
+                inc = Integer.parseInt(fields[3]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (stateIndex < 0 || stateIndex >= State.values().length)
+                continue;
+            State state = State.values()[stateIndex];
+
+            if (ip.equals(config.advertisedAddress().getHostAddress()) && port == config.udpClientPort) {
+                // Someone thinks this peer is suspect or dead, so refute it with a higher incarnation.
+                if (state != State.ALIVE && inc >= incarnation) {
+                    incarnation = inc + 1;
+                    queue(new Update(ip, port, State.ALIVE, incarnation, sends()));
+                }
+                continue;
+            }
+
+            Member m = members.get(ip);
+            switch (state) {
+                case ALIVE:
+                    if (m == null || inc > m.incarnation)
+                        alive(ip, port, inc);
+                    break;
+                case SUSPECT:
+                    if (m == null) {
+                        if (add(ip, port, State.SUSPECT, inc) != null)
+                            queue(members.get(ip));
+                    } else if (m.state == State.ALIVE ? inc >= m.incarnation : m.state == State.SUSPECT && inc > m.incarnation) {
+                        m.state = State.SUSPECT;
+                        m.incarnation = inc;
+                        m.changedAt = System.currentTimeMillis();
+                        Log.i(Messages.MEMBER_SUSPECT(ip));
+                        queue(m);
+                    }
+                    break;
+                case DEAD:
+                    if (m != null && m.state != State.DEAD) {
+                        m.state = State.DEAD;
+                        m.incarnation = Math.max(m.incarnation, inc);
+                        m.changedAt = System.currentTimeMillis();
+                        queue(m);
+                        failed.add(ip);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Mark a member alive, adding it if it is new, and pass the news on if it is news.
+     *
+     * @param ip The member's IP address.
+     * @param port The member's discovery port.
+     * @param inc The member's incarnation.
+     */
+    private void alive(String ip, int port, int inc) {
+        Member m = members.get(ip);
+        if (m == null) {
+            m = add(ip, port, State.ALIVE, inc);
+            if (m != null)
+                queue(m);
+            return;
+        }
+        m.udpPort = port;
+        m.incarnation = Math.max(m.incarnation, inc);
+        if (m.state != State.ALIVE) {
+            m.state = State.ALIVE;
+            queue(m);
+        }
+    }
+
+    /**
+     * Add a member, unless the membership is full.
+     *
+     * @return The new member, or null if there was no room for it.
+     */
+    private Member add(String ip, int port, State state, int inc) {
+        if (members.size() >= Values.PEER_TABLE_CAPACITY)
+            return null;
+        Member m = new Member(ip, port, state, inc, System.currentTimeMillis());
+        members.put(ip, m);
+        peers.add(ip, port);
+        return m;
+    }
+
+    private void queue(Member m) {
+        queue(new Update(m.ip, m.udpPort, m.state, m.incarnation, sends()));
+    }
+
+    /**
+     * Queue a change for piggybacking, replacing any older change about the same member.
+     */
+    private void queue(Update update) {
+        updates.put(update.ip, update);
+    }
+
+    /**
+     * @return How many times a change is piggybacked: 3 log2(n + 1), rounded up, for n members.
+     */
+    private int sends() {
+        return 3 * (32 - Integer.numberOfLeadingZeros(members.size() + 1));
+    }
+
+    /**
+     * Send a membership packet, piggybacking the changes that have been sent the fewest times so far.
+     *
+     * @param type The packet's type.
+     * @param seq The packet's sequence number.
+     * @param ip Destination IP address.
+     * @param port Destination port.
+     * @param extra Fields between the sender's incarnation and the changes, each starting with a colon.
+     */
+    private void send(String type, int seq, String ip, int port, String extra) {
+        List<Update> pending = new ArrayList<>(updates.values());
+        Collections.sort(pending, new Comparator<Update>() {
+            @Override
+            public int compare(Update a, Update b) {
+                return Integer.compare(b.sendsLeft, a.sendsLeft);
+            }
+        });
+
+        StringBuilder msg = new StringBuilder("SW:").append(type).append(':').append(seq).append(':')
+                .append(incarnation).append(extra).append(':');
+        for (int i = 0; i < Math.min(Values.GOSSIP_PIGGYBACK, pending.size()); i++) {
+            Update u = pending.get(i);
+            // Don't tell a member about itself unless it is being suspected, so it can refute it.
+            if (u.ip.equals(ip) && u.state == State.ALIVE)
+                continue;
+            if (msg.charAt(msg.length() - 1) != ':')
+                msg.append(',');
+            msg.append(u);
+            if (--u.sendsLeft == 0)
+                updates.remove(u.ip);
+        }
+        msg.append('\004');
+
+        try {
+            sender.send(msg.toString().getBytes(), ip, port);
+        } catch (IOException e) {
+            Log.e(Messages.ERR_UDP_PKTSEND, e);
+        }
+    }
+
+    /**
+     * Tell the rest of the peer about members declared dead. Called without holding the lock.
+     */
+    private void notifyFailed(List<String> failed) {
+        for (String ip : failed) {
+            Log.i(Messages.MEMBER_DEAD(ip));
+            peers.remove(ip);
+            peer.neighborFailed(ip);
+        }
+    }
+
+    /**
+     * Stop probing members.
+     */
+    void stop() {
+        tickTask.cancel();
+    }
+}
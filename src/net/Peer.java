@@ -1,16 +1,27 @@
 package net;
 
 import msg.Query;
+import util.FileHasher;
+import util.LocalAddress;
 import util.Log;
 import util.Messages;
+import util.Metrics;
 import util.PeerConfig;
+import util.SharedFileIndex;
+import util.Values;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -18,75 +29,187 @@ import java.util.Map;
  * Holds state dealing with and manages the peer's connections, and handles/makes requests.
  */
 public class Peer {
-    private ServerSocket welcomeSocket, transferSocket;
+    private ServerSocketChannel welcomeSocket, transferSocket;
 
     /**
-     * Threads to listen for any incoming connections
+     * This peer's configuration, with the ports its sockets were actually bound to.
      */
-    private Thread welcomeSocketListener, transferSocketListener;
-    private boolean welcomeListenerRunning, transferListenerRunning;
+    private final PeerConfig config;
+
+    /**
+     * Loop that drives every socket of this peer, including the two listening sockets.
+     */
+    private EventLoop loop;
 
     private DiscoveryClient discoveryClient;
 
-    private Map<Integer, Query> queries;
+    private QueryTable queries;
     private Map<InetAddress, Connection> connections; // Maps IP address to connection
-    private Map<InetAddress, TransferConnection> transferConnections; // Maps IP address to transfer connection
+    // Maps IP address and port to transfer connection, since a peer may open several transfer connections to this one
+    private Map<InetSocketAddress, TransferConnection> transferConnections;
+
+    private DownloadManager downloads;
+    private FileHasher hasher;
+    private RoutingSummaries routing;
+    private ResponseCache responseCache;
+
+    /**
+     * Start a peer whose sockets are all driven by a single event loop thread.
+     *
+     * @param config The peer's configuration.
+     * @throws IOException if the peer's sockets could not be opened.
+     */
+    public Peer(PeerConfig config) throws IOException {
+        this(ExecutionMode.EVENT_LOOP, config);
+    }
+
+    /**
+     * Start a peer. Any number of peers can run in one process, as long as their configurations don't share ports
+     * on the same address.
+     *
+     * @param mode How the peer runs the I/O of its connections.
+     * @param config The peer's configuration.
+     * @throws IOException if the peer's sockets could not be opened.
+     */
+    public Peer(ExecutionMode mode, PeerConfig config) throws IOException {
+        // Bind every socket first, so ports left for the system to pick are known before anything advertises them.
+        welcomeSocket = ServerSocketChannel.open();
+        welcomeSocket.bind(config.bindAddress(config.welcomePort));
+        transferSocket = ServerSocketChannel.open();
+        transferSocket.bind(config.bindAddress(config.transferPort));
+        DatagramSocket udpSocket = new DatagramSocket(config.bindAddress(config.udpClientPort));
+        this.config = config = config.withPorts(udpSocket.getLocalPort(),
+                welcomeSocket.socket().getLocalPort(), transferSocket.socket().getLocalPort());
 
-    public Peer() throws IOException {
-        welcomeSocket = new ServerSocket(PeerConfig.get().welcomePort);
+        // Queries and connections are accessed by different threads, so make them thread-safe
+        queries = new QueryTable(Values.QUERY_TABLE_CAPACITY, Values.QUERY_EXPIRY);
+        connections = Collections.synchronizedMap(new HashMap<InetAddress, Connection>());
+        transferConnections = Collections.synchronizedMap(new HashMap<InetSocketAddress, TransferConnection>());
 
-        welcomeSocketListener = new Thread(new Runnable() {
+        loop = new EventLoop(mode);
+        loop.start();
+
+        // Expire old queries even while no new ones arrive to push them out.
+        loop.schedule(new Runnable() {
             @Override
             public void run() {
-                welcomeListenerRunning = true;
-                while (welcomeListenerRunning) {
-                    try {
-                        // Block for incoming connections
-                        Socket newSocket = welcomeSocket.accept();
-                        Connection newConnection = new Connection(newSocket, queries, connections);
-                        Log.i(Messages.CONN_ACPT(newSocket.getInetAddress().getHostAddress()));
+                queries.expire(System.currentTimeMillis());
+            }
+        }, Values.QUERY_SWEEP_INTERVAL, Values.QUERY_SWEEP_INTERVAL);
 
-                        putConnection(newConnection);
-                    } catch (IOException e) {
-                        Log.e(Messages.ERR_WLCMACCEPT, e);
-                    }
+        // Keep the advertised address current, without ever making pings, pongs or responses wait for it.
+        // A configured address never changes, so there is nothing to refresh then.
+        if (config.address == null) {
+            loop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    LocalAddress.refresh();
                 }
+            }, Values.ADDRESS_REFRESH_INTERVAL, Values.ADDRESS_REFRESH_INTERVAL);
+        }
+
+        hasher = new FileHasher();
+        hashSharedFiles();
+
+        downloads = new DownloadManager(loop, config, hasher);
+        routing = new RoutingSummaries(loop, connections, config.sharedFiles);
+        responseCache = new ResponseCache(Values.RESPONSE_CACHE_CAPACITY, Values.RESPONSE_CACHE_TTL,
+                Values.MAX_DOWNLOAD_SOURCES);
+
+        loop.serve(welcomeSocket, new EventLoop.Acceptor() {
+            @Override
+            public void accepted(SocketChannel newSocket) throws IOException {
+                Connection newConnection = new Connection(newSocket, loop, Peer.this.config, queries, connections,
+                        downloads, hasher, routing, responseCache);
+                Log.i(Messages.CONN_ACPT(newConnection.neighborAddr.getHostAddress()));
+
+                putConnection(newConnection);
             }
-        });
-        welcomeSocketListener.setDaemon(true);
-        welcomeSocketListener.start();
 
-        transferSocket = new ServerSocket(PeerConfig.get().transferPort);
+            @Override
+            public void failed(IOException e) {
+                Log.e(Messages.ERR_WLCMACCEPT, e);
+            }
+        });
 
-        transferSocketListener = new Thread(new Runnable() {
+        loop.serve(transferSocket, new EventLoop.Acceptor() {
             @Override
-            public void run() {
-                transferListenerRunning = true;
-                while (transferListenerRunning) {
-                    try {
-                        // Block for incoming connections
-                        Socket newSocket = transferSocket.accept();
-                        TransferConnection newTferConnection = new TransferConnection(newSocket);
-                        Log.i(Messages.TFER_ACPT(newSocket.getInetAddress().getHostAddress()));
+            public void accepted(SocketChannel newSocket) throws IOException {
+                TransferConnection newTferConnection = new TransferConnection(newSocket, loop,
+                        Peer.this.config.sharedFiles, transferConnections);
+                if (Log.isDebug())
+                    Log.d(Messages.TFER_ACPT(newTferConnection.socket.getInetAddress().getHostAddress()));
 
-                        newTferConnection.listener.start();
-                        Peer.this.transferConnections.put(newSocket.getInetAddress(), newTferConnection);
-                    } catch (IOException e) {
-                        Log.e(Messages.ERR_TFERACCEPT, e);
-                    }
-                }
+                // Put the connection in the map first, so it can't be torn down before it is there to be removed.
+                Peer.this.transferConnections.put(newTferConnection.remoteAddr, newTferConnection);
+                newTferConnection.start();
+            }
+
+            @Override
+            public void failed(IOException e) {
+                Log.e(Messages.ERR_TFERACCEPT, e);
             }
         });
-        transferSocketListener.setDaemon(true);
-        transferSocketListener.start();
 
-        discoveryClient = new DiscoveryClient();
+        discoveryClient = new DiscoveryClient(this, loop, config, udpSocket, queries, downloads, hasher);
         discoveryClient.listener.start();
 
-        // Queries and connections are accessed by different threads, so make them thread-safe
-        queries = Collections.synchronizedMap(new HashMap<Integer, Query>());
-        connections = Collections.synchronizedMap(new HashMap<InetAddress, Connection>());
-        transferConnections = new HashMap<>();
+        Metrics.get().gauge(config.metricsPrefix() + "connections.neighbors", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return connections.size();
+            }
+        });
+        Metrics.get().gauge(config.metricsPrefix() + "connections.transfers", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return transferConnections.size();
+            }
+        });
+    }
+
+    /**
+     * @return This peer's configuration, with the ports its sockets were actually bound to.
+     */
+    public PeerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Hash every shared file in the background, so the first responses for them don't have to wait,
+     * and so they can be found by digest.
+     */
+    private void hashSharedFiles() {
+        final SharedFileIndex sharedFiles = config.sharedFiles;
+        for (final File f : sharedFiles.files()) {
+            hasher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sharedFiles.putDigest(f, hasher.digests(f).file);
+                    } catch (IOException e) {
+                        Log.e(Messages.ERR_FILEREAD, e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Read the list of shared files again and rebuild the shared file index, while queries keep being served.
+     * If the shared files were given in memory, rebuild the configuration's index first, then call this to announce them.
+     */
+    public void rescanSharedFiles() {
+        try {
+            config.reloadSharedFiles();
+        } catch (IOException e) {
+            Log.e(Messages.ERR_PEERCONFIG, e);
+            return;
+        }
+        Log.i(Messages.RESCAN_DONE(config.sharedFiles.size()));
+        hashSharedFiles();
+        routing.sharedFilesChanged();
+        discoveryClient.dht().publish();
     }
 
     public void connect(String ip, int port) {
@@ -98,17 +221,38 @@ public class Peer {
     }
 
     /**
-     * Send a query for a file, specified by name, over all connections.
+     * Send a query for a file, specified by name, over all connections, with the default hop limit.
      *
      * @param filename The name of the file to request.
      */
     public void requestFile(String filename) {
+        requestFile(filename, Values.QUERY_HOP_LIMIT);
+    }
+
+    /**
+     * Send a query for a file, specified by name, over all connections through which the file might be found,
+     * according to the neighbors' routing summaries.
+     *
+     * @param filename The name of the file to request.
+     * @param hopLimit The number of times the query may be forwarded past this peer's neighbors.
+     */
+    public void requestFile(String filename, int hopLimit) {
         // Create and store query
-        Query newQuery = new Query(filename);
-        queries.put(newQuery.getId(), newQuery);
+        Query newQuery = new Query(filename, hopLimit);
+        queries.putIfAbsent(newQuery);
+
+        // Send query thru each connection that might lead to the file
+        List<Connection> targets = new ArrayList<>();
+        synchronized (connections) {
+            for (Connection c : connections.values()) {
+                if (RoutingSummaries.mayReach(c, filename, hopLimit))
+                    targets.add(c);
+            }
+        }
+        if (targets.isEmpty())
+            Log.i(Messages.QUERY_NOROUTE(newQuery));
 
-        // Send query thru each connection
-        for (Connection c : connections.values()) {
+        for (Connection c : targets) {
             Log.i(Messages.QUERY_SEND(newQuery, c.neighborAddr.getHostAddress()));
             try {
                 c.sendPeerMessage(newQuery);
@@ -120,19 +264,71 @@ public class Peer {
         }
     }
 
+    /**
+     * Look a file up in the DHT instead of flooding a query for it, and download it from the providers found.
+     *
+     * @param filename The name of the file to request.
+     */
+    public void lookupFile(String filename) {
+        discoveryClient.dht().requestFile(filename);
+    }
+
+    /**
+     * Print every runtime metric.
+     */
+    public void printStats() {
+        Log.i(Metrics.get().report());
+    }
+
     /**
      * Add a new neighboring connection with a host of the specified IP address and port.
      * This method is used by the DiscoveryClient when it receives a pong from a connect command.
+     * It returns as soon as the connect has started; the connection is put in the map once it is established.
      *
      * @param ip The IP address of the new peer
      * @param port The port of the new peer
      */
     void addNeighbor(String ip, int port) throws IOException {
         InetAddress peerAddr = InetAddress.getByName(ip);
-        Socket newSocket = new Socket(peerAddr, port);
+        SocketChannel newSocket = SocketChannel.open();
+        // Connect from this peer's own address, so the neighbor knows which peer the connection belongs to.
+        newSocket.bind(config.bindAddress(0));
+        // Only start connecting here. This is called on the discovery listener's thread, which must not wait
+        // for a neighbor that doesn't answer; the connection finishes connecting on its own.
+        newSocket.configureBlocking(false);
+        newSocket.connect(new InetSocketAddress(peerAddr, port));
+
+        Connection newConn = new Connection(newSocket, loop, config, queries, connections,
+                downloads, hasher, routing, responseCache);
+        newConn.connect(new Connection.ConnectListener() {
+            @Override
+            public void connected(Connection conn) {
+                Connection lastConn = connections.put(conn.neighborAddr, conn);
+                if (lastConn != null && lastConn.isAlive())
+                    lastConn.teardown();
+                Log.i(Messages.CONN_SUCCESS(conn.neighborAddr.getHostAddress()));
+            }
+        });
+    }
 
-        Connection newConn = new Connection(newSocket, queries, connections);
-        putConnection(newConn);
+    /**
+     * Close the connection with a neighbor that the membership protocol declared dead, if there is one,
+     * instead of waiting for its heartbeats to time out.
+     *
+     * @param ip The IP address of the dead peer
+     */
+    void neighborFailed(String ip) {
+        InetAddress peerAddr;
+        try {
+            peerAddr = InetAddress.getByName(ip);
+        } catch (UnknownHostException e) {
+            return;
+        }
+        Connection conn = connections.remove(peerAddr);
+        if (conn != null) {
+            Log.i(Messages.CONN_DEAD(ip));
+            conn.teardown();
+        }
     }
 
     /**
@@ -155,7 +351,7 @@ public class Peer {
         }
 
         Log.i(Messages.CONN_SUCCESS(conn.neighborAddr.getHostAddress()));
-        conn.listener.start();
+        conn.start();
         connections.put(conn.neighborAddr, conn);
     }
 
@@ -167,10 +363,13 @@ public class Peer {
         }
 
         Log.i(Messages.TRDN_CONNCLOSING);
-        for (Connection c : connections.values()) {
-            c.teardown();
+        // Neighbors may close their ends meanwhile, and their connections remove themselves from the map.
+        synchronized (connections) {
+            for (Connection c : connections.values()) {
+                c.teardown();
+            }
+            connections.clear();
         }
-        connections.clear();
         Log.i(Messages.TRDN_CONNCLOSED);
     }
 
@@ -179,19 +378,29 @@ public class Peer {
      * Used for a clean exit.
      */
     public void teardown() {
+        // The gauges would otherwise keep this peer reachable, and its connections' gauges go with the connections.
+        Metrics.get().removeGauge(config.metricsPrefix() + "connections.neighbors");
+        Metrics.get().removeGauge(config.metricsPrefix() + "connections.transfers");
         discoveryClient.teardown();
         closeAllConnections();
 
-        for (TransferConnection tc : transferConnections.values()) {
+        // Transfer connections remove themselves from the map as they are torn down, so go through a copy.
+        List<TransferConnection> transfers;
+        synchronized (transferConnections) {
+            transfers = new ArrayList<>(transferConnections.values());
+        }
+        for (TransferConnection tc : transfers) {
             tc.teardown();
         }
-        transferConnections.clear();
 
         // Stop accepting new connections
-        welcomeListenerRunning = false;
-        welcomeSocketListener.interrupt();
-
-        transferListenerRunning = false;
-        transferSocketListener.interrupt();
+        try {
+            welcomeSocket.close();
+            transferSocket.close();
+        } catch (IOException e) {
+            Log.e(Messages.ERR_SOCKCLOSE, e);
+        }
+        loop.shutdown();
+        hasher.shutdown();
     }
 }
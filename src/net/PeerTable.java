@@ -0,0 +1,184 @@
+package net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Table of the peers that discovery has heard of, keyed by IP address.
+ *
+ * For each peer, the table keeps its discovery (UDP) port, its welcome port once a pong has revealed it,
+ * when it was last heard from, and a liveness score: one point for every ping or pong heard from it, up to a maximum,
+ * less one point for every sweep it went unheard through.
+ * A peer is forgotten once it hasn't been heard from for a fixed time to live. The table holds a bounded number of
+ * peers, and drops the one heard from least recently to make room for a new one.
+ *
+ * Ping propagation and the choice of neighbors after a connect command both read from this table.
+ * All methods are synchronized, since the discovery listener, the shell thread and the timer thread all use it.
+ */
+class PeerTable {
+    /**
+     * What the table knows about a peer. Instances handed out by the table are copies, so they never change.
+     */
+    static class Entry {
+        final String ip;
+        final int udpPort;
+        // Port that the peer accepts neighbor connections on, or 0 if it hasn't sent a pong yet
+        final int welcomePort;
+        final long lastSeen;
+        final int score;
+
+        Entry(String ip, int udpPort, int welcomePort, long lastSeen, int score) {
+            this.ip = ip;
+            this.udpPort = udpPort;
+            this.welcomePort = welcomePort;
+            this.lastSeen = lastSeen;
+            this.score = score;
+        }
+    }
+
+    private static final int MAX_SCORE = 8;
+
+    private final long ttl;
+
+    // Maps IP to what is known about the peer. Kept in access order, so the eldest entry is the least recently heard from.
+    private final LinkedHashMap<String, Entry> peers;
+    // Time of the last sweep, in ms
+    private long lastSweep = System.currentTimeMillis();
+
+    /**
+     * Create an empty table.
+     *
+     * @param capacity The largest number of peers the table holds.
+     * @param ttl How long a peer stays in the table without being heard from, in ms.
+     */
+    PeerTable(final int capacity, long ttl) {
+        this.ttl = ttl;
+        this.peers = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PeerTable.Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Add a peer that pings are about to be sent to, without counting it as heard from.
+     *
+     * @param ip The peer's IP address.
+     * @param udpPort The peer's discovery port.
+     * @return true if the peer wasn't in the table before.
+     */
+    synchronized boolean add(String ip, int udpPort) {
+        // containsKey() doesn't count as access, so a peer that hasn't been heard from keeps its place in the LRU order.
+        if (peers.containsKey(ip))
+            return false;
+        peers.put(ip, new Entry(ip, udpPort, 0, System.currentTimeMillis(), 0));
+        return true;
+    }
+
+    /**
+     * Record a ping or pong heard from a peer, adding the peer if it is new.
+     *
+     * @param ip The peer's IP address.
+     * @param udpPort The peer's discovery port.
+     * @param welcomePort The peer's welcome port, or 0 if the packet didn't say.
+     * @return true if the peer wasn't in the table before.
+     */
+    synchronized boolean heard(String ip, int udpPort, int welcomePort) {
+        Entry old = peers.get(ip);
+        int score = 1;
+        if (old != null) {
+            score = Math.min(old.score + 1, MAX_SCORE);
+            if (welcomePort == 0)
+                welcomePort = old.welcomePort;
+        }
+        peers.put(ip, new Entry(ip, udpPort, welcomePort, System.currentTimeMillis(), score));
+        return old == null;
+    }
+
+    /**
+     * Pick peers at random, e.g. to propagate a ping to.
+     *
+     * @param count The largest number of peers to pick.
+     * @param exclude IP addresses of peers to leave out.
+     * @return Up to count peers, none of them excluded.
+     */
+    synchronized List<Entry> sample(int count, String... exclude) {
+        List<Entry> result = new ArrayList<>(peers.size());
+        for (Entry e : peers.values()) {
+            if (!Arrays.asList(exclude).contains(e.ip))
+                result.add(e);
+        }
+        if (result.size() > count) {
+            Collections.shuffle(result);
+            result = result.subList(0, count);
+        }
+        return result;
+    }
+
+    /**
+     * Pick peers to connect to as neighbors. Only peers that sent a pong can be picked, since only a pong tells
+     * a peer's welcome port. The liveliest peers are picked first, and ties are broken at random.
+     *
+     * @param count The largest number of peers to pick.
+     * @return Up to count peers, liveliest first.
+     */
+    synchronized List<Entry> neighborCandidates(int count) {
+        List<Entry> candidates = new ArrayList<>();
+        for (Entry e : peers.values()) {
+            if (e.welcomePort != 0)
+                candidates.add(e);
+        }
+        // Shuffling first means the stable sort leaves peers with equal scores in random order.
+        Collections.shuffle(candidates);
+        Collections.sort(candidates, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Integer.compare(b.score, a.score);
+            }
+        });
+        return candidates.subList(0, Math.min(count, candidates.size()));
+    }
+
+    /**
+     * Lower the score of every peer not heard from since the last sweep, and forget peers whose time to live has run out.
+     *
+     * @param now The current time, in ms.
+     */
+    synchronized void sweep(long now) {
+        // Iterating over the entry set doesn't count as access, so it leaves the LRU order alone.
+        Iterator<Map.Entry<String, Entry>> it = peers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> mapEntry = it.next();
+            Entry e = mapEntry.getValue();
+            if (now - e.lastSeen >= ttl) {
+                it.remove();
+            } else if (e.score > 0 && e.lastSeen < lastSweep) {
+                mapEntry.setValue(new Entry(e.ip, e.udpPort, e.welcomePort, e.lastSeen, e.score - 1));
+            }
+        }
+        lastSweep = now;
+    }
+
+    /**
+     * Forget a peer, e.g. once it has been declared dead.
+     *
+     * @param ip The peer's IP address.
+     */
+    synchronized void remove(String ip) {
+        peers.remove(ip);
+    }
+
+    /**
+     * @return The number of peers in the table.
+     */
+    synchronized int size() {
+        return peers.size();
+    }
+}
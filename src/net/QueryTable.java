@@ -0,0 +1,196 @@
+package net;
+
+import msg.Query;
+
+/**
+ * Table of recently seen queries, used to drop duplicate queries and to route responses back along the query's path.
+ *
+ * Unlike a HashMap, the table never grows: it holds at most a fixed number of queries,
+ * and forgets each query once it is older than a fixed time to live.
+ * Query IDs are stored as primitive ints in an open-addressing hash table, so lookups don't box keys
+ * and each entry costs a few words instead of a map entry, a boxed key and a node.
+ *
+ * Since every query lives for the same time, the oldest query is always the next to expire.
+ * The table keeps the IDs in insertion order in a ring buffer, so both expiring old queries and making room
+ * for a new one when the table is full just means dropping queries from the head of the ring.
+ *
+ * All methods are synchronized, since queries are added by the shell thread as well as the loop thread.
+ */
+class QueryTable {
+    private final int capacity;
+    private final long ttl;
+
+    // Open-addressing hash table. A slot is empty if its value is null.
+    private final int mask;
+    private final int[] keys;
+    private final Query[] values;
+    private final long[] addedAt;
+    private int size;
+
+    // IDs and insertion times of queries, oldest first.
+    // Queries removed early stay in the ring until they reach its head, where they are recognized and skipped.
+    private final int[] ringKeys;
+    private final long[] ringTimes;
+    private int ringHead, ringSize;
+
+    /**
+     * Create an empty table.
+     *
+     * @param capacity The largest number of queries the table holds.
+     * @param ttl How long a query stays in the table, in ms.
+     */
+    QueryTable(int capacity, long ttl) {
+        this.capacity = capacity;
+        this.ttl = ttl;
+
+        // Keep the load factor at or below one half, so probe sequences stay short.
+        int tableSize = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) << 1;
+        this.mask = tableSize - 1;
+        this.keys = new int[tableSize];
+        this.values = new Query[tableSize];
+        this.addedAt = new long[tableSize];
+
+        this.ringKeys = new int[capacity];
+        this.ringTimes = new long[capacity];
+    }
+
+    /**
+     * Add a query if a query with the same ID isn't in the table already.
+     * If the table is full, the oldest query is dropped to make room.
+     *
+     * @param query The query to add.
+     * @return true if the query was added, false if the table already held a query with its ID.
+     */
+    synchronized boolean putIfAbsent(Query query) {
+        long now = System.currentTimeMillis();
+        expire(now);
+
+        int id = query.getId();
+        if (find(id) >= 0)
+            return false;
+
+        if (ringSize == capacity)
+            dropOldest();
+
+        int slot = slotOf(id);
+        while (values[slot] != null)
+            slot = (slot + 1) & mask;
+        keys[slot] = id;
+        values[slot] = query;
+        addedAt[slot] = now;
+        size++;
+
+        int tail = (ringHead + ringSize) % capacity;
+        ringKeys[tail] = id;
+        ringTimes[tail] = now;
+        ringSize++;
+        return true;
+    }
+
+    /**
+     * @param id A query ID.
+     * @return The query with that ID, or null if it isn't in the table (or has expired).
+     */
+    synchronized Query get(int id) {
+        expire(System.currentTimeMillis());
+        int slot = find(id);
+        return slot < 0 ? null : values[slot];
+    }
+
+    /**
+     * @param id A query ID.
+     * @return Whether a query with that ID is in the table.
+     */
+    synchronized boolean containsKey(int id) {
+        return get(id) != null;
+    }
+
+    /**
+     * Remove a query from the table.
+     *
+     * @param id The query's ID.
+     * @return The query that was removed, or null if it wasn't in the table.
+     */
+    synchronized Query remove(int id) {
+        int slot = find(id);
+        if (slot < 0)
+            return null;
+        Query query = values[slot];
+        removeSlot(slot);
+        return query;
+    }
+
+    /**
+     * Drop every query whose time to live has run out. Only needs to look at the head of the ring.
+     *
+     * @param now The current time, in ms.
+     */
+    synchronized void expire(long now) {
+        while (ringSize > 0 && now - ringTimes[ringHead] >= ttl)
+            dropOldest();
+    }
+
+    /**
+     * @return The number of queries in the table.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Drop the query at the head of the ring from the table, unless it was already removed.
+     */
+    private void dropOldest() {
+        int id = ringKeys[ringHead];
+        long time = ringTimes[ringHead];
+        ringHead = (ringHead + 1) % capacity;
+        ringSize--;
+
+        // If the query was removed early, its ID may since have been reused by a newer query, which must stay.
+        int slot = find(id);
+        if (slot >= 0 && addedAt[slot] == time)
+            removeSlot(slot);
+    }
+
+    private int find(int id) {
+        int slot = slotOf(id);
+        while (values[slot] != null) {
+            if (keys[slot] == id)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Empty a slot, shifting later entries of the same probe sequence back so lookups still find them.
+     *
+     * @param slot The slot to empty.
+     */
+    private void removeSlot(int slot) {
+        values[slot] = null;
+        size--;
+
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (values[next] != null) {
+            int home = slotOf(keys[next]);
+            // An entry may only move back to the hole if the hole lies between its home slot and where it is now.
+            boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                addedAt[hole] = addedAt[next];
+                values[next] = null;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private int slotOf(int id) {
+        // Query IDs are random, but mix them anyway so sequential IDs don't form long runs.
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
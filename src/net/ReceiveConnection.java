@@ -1,112 +1,433 @@
 package net;
 
-import msg.Response;
+import msg.MessageDecoder;
+import msg.PeerMessage;
+import msg.TransferReply;
+import msg.TransferRequest;
 import util.Log;
 import util.Messages;
+import util.Metrics;
+import util.Values;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Writer;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Represents a connection between two peers, used to receive a file that was previously requested.
+ * Represents a connection between two peers, used to receive ranges of files that were previously requested.
  *
  * This class is used by the peer receiving the file, whereas the peer sending the file will use a TransferConnection.
+ * The connection is opened without blocking; requests are sent once the loop reports that it has connected
+ * (or, in ExecutionMode.THREADS, once the connection's thread has finished connecting).
+ *
+ * The connection stays open between ranges, and is shared through a TransferPool by every download that fetches
+ * from the same peer. Requests are pipelined: each is sent as soon as it is made, without waiting for the ones
+ * before it, and the sender answers them in order, each with a TransferReply followed by the range's bytes.
+ * Each range is written byte for byte, at its offset, into an output file owned by the download it belongs to.
+ * The download is told through its Listener once the range has arrived or the request has failed.
  */
 public class ReceiveConnection extends AbstractConnection {
-    private Writer outputFileWriter;
+    private static final LongAdder BYTES_RECEIVED = Metrics.get().counter("transfers.bytesReceived");
+    private static final LongAdder RANGES_RECEIVED = Metrics.get().counter("transfers.rangesReceived");
 
     /**
-     * Thread to request the file.
+     * Callbacks for the outcome of a range request. Both are called on the loop thread, and exactly one is called.
      */
-    Thread requester;
+    interface Listener {
+        /**
+         * The whole range has been written to the output file.
+         *
+         * @param request The request for the range.
+         */
+        void onReceived(Request request);
+
+        /**
+         * The connection closed or failed, or the sender refused the request, before the whole range arrived.
+         *
+         * @param request The request that failed.
+         */
+        void onFailed(Request request);
+    }
 
     /**
-     * Thread to receive the file.
+     * A request for a range of a file, made over a ReceiveConnection.
      */
-    Thread receiver;
+    static class Request {
+        private final ReceiveConnection conn;
+        private final TransferRequest message;
 
-    ReceiveConnection(final Response response) throws IOException {
-        this.socket = new Socket(response.getOrigin(), response.getPort());
-        File outputFile = new File("./obtained/" + response.getFilename());
-        this.outputFileWriter = new BufferedWriter(new FileWriter(outputFile, false));
+        final String filename;
+        final long offset, length;
 
-        this.requester = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                String pktMsg = "T:" + response.getFilename() + "\004";
-                try {
-                    socket.getOutputStream().write(pktMsg.getBytes());
-                } catch (IOException e) {
-                    if (ReceiveConnection.this.isAlive())
-                        Log.e(Messages.ERR_TFER_REQSEND);
+        private final FileChannel outputFile;
+        private final Listener listener;
+
+        // Number of bytes of the range that have arrived so far.
+        // In ExecutionMode.THREADS this is written by the connection's thread and read by the loop, so make it volatile
+        private volatile long received;
+
+        // Whether the listener has already been told the outcome (or doesn't need to be); only changed by finish()
+        private volatile boolean finished;
+
+        private Request(ReceiveConnection conn, String filename, long offset, long length,
+                        FileChannel outputFile, Listener listener) {
+            this.conn = conn;
+            this.message = new TransferRequest(filename, offset, length);
+            this.filename = filename;
+            this.offset = offset;
+            this.length = length;
+            this.outputFile = outputFile;
+            this.listener = listener;
+        }
+
+        /**
+         * @return The number of bytes of the range that have been received so far.
+         */
+        long getReceived() {
+            return received;
+        }
+
+        /**
+         * Mark the outcome of this request as decided.
+         *
+         * @return true if it wasn't decided yet, i.e. the caller gets to tell the listener (if anyone should).
+         */
+        private synchronized boolean finish() {
+            if (finished)
+                return false;
+            finished = true;
+            return true;
+        }
+
+        /**
+         * Stop caring about this range without telling the listener, e.g. because another source already sent it.
+         */
+        void cancel() {
+            conn.cancel(this);
+        }
+    }
+
+    final InetSocketAddress source;
+
+    // Requests whose ranges haven't fully arrived yet, in the order they were sent.
+    // The head is the one whose range is arriving (or whose reply is expected next)
+    private final Queue<Request> requests;
+
+    // Whether requests can be sent yet, and whether the connection has been torn down; guarded by this connection
+    private boolean connected, closed;
+
+    // When the last outstanding range arrived, or when the connection was opened.
+    // Different threads access this, so make it volatile
+    private volatile long idleSince;
+
+    // The reply that precedes the next range while it is still arriving, and the request whose range is arriving.
+    // Only used by the thread that reads the channel
+    private final ByteBuffer replyBuffer;
+    private final MessageDecoder decoder;
+    private Request receiving;
+
+    /**
+     * Open a connection to fetch ranges of files from a peer.
+     *
+     * @param source Address and transfer port of the peer.
+     * @param local Local address to connect from; see PeerConfig.bindAddress().
+     * @param loop The loop that drives this connection.
+     * @throws IOException if the socket could not be opened.
+     */
+    ReceiveConnection(InetSocketAddress source, InetSocketAddress local, EventLoop loop) throws IOException {
+        super(SocketChannel.open(), loop, 65536);
+        this.source = source;
+        this.requests = new ConcurrentLinkedQueue<>();
+        this.idleSince = System.currentTimeMillis();
+        this.replyBuffer = ByteBuffer.allocate(TransferReply.FRAME_LENGTH);
+        this.decoder = new MessageDecoder();
+
+        channel.bind(local);
+        channel.connect(source);
+    }
+
+    /**
+     * Register with the loop, which will send the requests once the connection has been established.
+     * If the connection stalls, it is closed and every outstanding request fails.
+     */
+    void start() {
+        armIdleTimeout(Values.TRANSFER_TIMEOUT);
+        if (channel.isConnected() && !loop.isThreaded()) {
+            // The connection was established immediately, so there is no connect event to wait for.
+            drive(SelectionKey.OP_READ);
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onConnected();
                 }
+            });
+        } else {
+            drive(SelectionKey.OP_CONNECT);
+        }
+    }
+
+    /**
+     * Request a range of a file over this connection. The request is sent right away if the connection is established,
+     * or as soon as it is if not.
+     * If the connection has already been torn down, the listener is told that the request failed.
+     *
+     * @param filename The name of the file.
+     * @param offset Offset of the first byte to fetch.
+     * @param length Number of bytes to fetch.
+     * @param outputFile File to write the bytes to, at the same offsets they have in the original.
+     * @param listener Listener to tell once the range has arrived or the request has failed.
+     * @return The request, which can be used to cancel it.
+     */
+    Request fetch(String filename, long offset, long length, FileChannel outputFile, Listener listener) {
+        Request request = new Request(this, filename, offset, length, outputFile, listener);
+        boolean wasClosed, sendFailed = false;
+        synchronized (this) {
+            wasClosed = closed;
+            if (!closed) {
+                requests.add(request);
+                if (connected)
+                    sendFailed = !send(request);
             }
-        });
+        }
+
+        if (wasClosed) {
+            if (request.finish())
+                notifyListener(request, false);
+        } else if (sendFailed) {
+            teardown();
+        }
+        return request;
+    }
+
+    /**
+     * @return The number of requests whose ranges haven't fully arrived yet.
+     */
+    int outstanding() {
+        return requests.size();
+    }
+
+    /**
+     * @return When the connection last had no requests outstanding, in ms since the epoch.
+     */
+    long idleSince() {
+        return idleSince;
+    }
+
+    /**
+     * Write a request to the channel. Called with this connection's lock held, so requests go out in order.
+     *
+     * @return false if the request could not be sent, in which case the connection should be torn down.
+     */
+    private boolean send(Request request) {
+        try {
+            write(request.message.encode());
+            return true;
+        } catch (IOException e) {
+            if (isAlive())
+                Log.e(Messages.ERR_TFER_REQSEND);
+            return false;
+        }
+    }
 
-        this.receiver = new Thread(new Runnable() {
+    /**
+     * Tell a request's listener the outcome, on the loop thread.
+     * The listener is never called before fetch() has returned the request, even if the request failed right away.
+     *
+     * @param request The request.
+     * @param success Whether the whole range arrived.
+     */
+    private void notifyListener(final Request request, final boolean success) {
+        loop.execute(new Runnable() {
             @Override
             public void run() {
-                // Wait for request to finish
-                try {
-                    ReceiveConnection.this.requester.join();
-                } catch (InterruptedException ignored) {}
-                // If the requester was interrupted, that means this connection is in teardown, so just ignore the exception.
-
-                // Receive file (in chunks)
-                byte[] recvBuf = new byte[65536];
-                int recvLen = -1;
-                do {
-                    try {
-                        recvLen = socket.getInputStream().read(recvBuf);
-                    } catch (IOException e) {
-                        // Only log an error if the connection is still alive, otherwise stop
-                        if (ReceiveConnection.this.isAlive())
-                            Log.e(Messages.ERR_CONNREAD(socket.getInetAddress().getHostAddress()));
-                        else return;
-                    }
-                    processPacket(recvBuf, recvLen);
-                } while (ReceiveConnection.this.isAlive() && recvLen > 0);
-
+                if (success)
+                    request.listener.onReceived(request);
+                else
+                    request.listener.onFailed(request);
             }
         });
     }
 
+    /**
+     * Send the requests made so far now that the connection is established.
+     */
+    @Override
+    protected void onConnected() {
+        boolean failed = false;
+        synchronized (this) {
+            connected = true;
+            for (Request request : requests) {
+                if (!send(request)) {
+                    failed = true;
+                    break;
+                }
+            }
+        }
+        if (failed)
+            teardown();
+    }
+
     /**
      * Process an incoming packet.
-     * This should be a chunk of the requested file, which is written to a new file on the peer's filesystem.
+     * This holds the replies to the outstanding requests, each followed by its range.
+     * Each range is written at its offset in its output file, and its listener is told once all of it has arrived.
      *
      * @param pktData Byte array of the incoming packet that was sent over the socket.
      * @param pktLen Length of the incoming packet
      */
     @Override
     protected void processPacket(byte[] pktData, int pktLen) {
-        // Don't do anything if packet is empty.
-        if (pktLen <= 0) return;
+        int pos = 0;
+        while (pos < pktLen) {
+            if (receiving == null) {
+                // Collect the reply that precedes the next range
+                int n = Math.min(replyBuffer.remaining(), pktLen - pos);
+                replyBuffer.put(pktData, pos, n);
+                pos += n;
+                if (replyBuffer.hasRemaining())
+                    return;
+                if (!startRange())
+                    return;
+                continue;
+            }
+
+            Request request = receiving;
+            int n = (int) Math.min(pktLen - pos, request.length - request.received);
+            // A cancelled range still has to be read past, but isn't written anywhere.
+            if (!request.finished) {
+                ByteBuffer chunk = ByteBuffer.wrap(pktData, pos, n);
+                try {
+                    while (chunk.hasRemaining())
+                        request.outputFile.write(chunk, request.offset + request.received + (chunk.position() - pos));
+                } catch (IOException e) {
+                    Log.e(Messages.ERR_FILEWRITE, e);
+                    teardown();
+                    return;
+                }
+            }
+            request.received += n;
+            pos += n;
+            BYTES_RECEIVED.add(n);
+            if (request.received >= request.length)
+                finishRange();
+        }
+    }
 
-        String chunk = new String(pktData, 0, pktLen, StandardCharsets.UTF_8).trim();
+    /**
+     * Decode the reply that has arrived for the first outstanding request, and start receiving its range.
+     *
+     * @return false if the reply doesn't match the request, in which case the connection has been torn down.
+     */
+    private boolean startRange() {
+        replyBuffer.flip();
+        decoder.feed(replyBuffer.array(), 0, replyBuffer.limit());
+        replyBuffer.clear();
 
-        // Write to the file
+        PeerMessage message;
         try {
-            outputFileWriter.write(chunk);
-        } catch (IOException e) {
-            Log.e(Messages.ERR_FILEWRITE, e);
+            message = decoder.next();
+        } catch (ProtocolException e) {
+            message = null;
+        }
+        Request request = requests.peek();
+        if (request == null || !(message instanceof TransferReply) || message.getId() != request.message.getId()) {
+            // Without a matching reply, there is no telling where the ranges in the stream start.
+            if (channel.isOpen())
+                Log.e(Messages.CONN_PKTWEIRD);
+            teardown();
+            return false;
         }
+
+        TransferReply reply = (TransferReply) message;
+        if (reply.isRefused()) {
+            Log.e(Messages.ERR_TFER_REFUSED(request.filename, source.getAddress().getHostAddress()));
+            requests.poll();
+            markIdle();
+            if (request.finish())
+                notifyListener(request, false);
+            return true;
+        }
+        if (reply.getLength() != request.length) {
+            Log.e(Messages.CONN_PKTWEIRD);
+            teardown();
+            return false;
+        }
+
+        receiving = request;
+        // An empty range has no bytes to wait for.
+        if (request.length == 0)
+            finishRange();
+        return true;
+    }
+
+    /**
+     * The whole range of the first outstanding request has arrived, so tell its listener.
+     */
+    private void finishRange() {
+        Request request = requests.poll();
+        receiving = null;
+        markIdle();
+        if (request != null && request.finish()) {
+            RANGES_RECEIVED.increment();
+            notifyListener(request, true);
+        }
+    }
+
+    private void markIdle() {
+        if (requests.isEmpty())
+            idleSince = System.currentTimeMillis();
+    }
+
+    /**
+     * Forget a request without telling its listener.
+     * Once a range has been requested, the sender sends it whether it is still wanted or not. If other requests are
+     * waiting behind it, the rest of it is read and thrown away; if not, the connection is simply closed.
+     *
+     * @param request The request to forget.
+     */
+    private void cancel(Request request) {
+        if (!request.finish())
+            return;
+        if (requests.size() <= 1)
+            teardown();
     }
 
+    /**
+     * The sender closed the connection. If it did so before sending every requested range, those requests fail.
+     */
+    @Override
+    protected void onEndOfStream() {
+        Request request = receiving;
+        if (request != null && !request.finished)
+            Log.e(Messages.ERR_TFER_INCOMPLETE(request.filename, request.received, request.length));
+        teardown();
+    }
+
+    /**
+     * Teardown this connection. Every request whose range hasn't arrived yet fails.
+     */
     @Override
     void teardown() {
-        try {
-            outputFileWriter.close();
-        } catch (IOException e) {
-            Log.e(Messages.ERR_FILEWRITE, e);
-        }
-        requester.interrupt();
-        receiver.interrupt();
         super.teardown();
+
+        List<Request> failed;
+        synchronized (this) {
+            closed = true;
+            failed = new ArrayList<>(requests);
+            requests.clear();
+        }
+        for (Request request : failed) {
+            if (request.finish())
+                notifyListener(request, false);
+        }
     }
 }
@@ -0,0 +1,137 @@
+package net;
+
+import msg.Query;
+import msg.Response;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of recent responses that passed through this peer, so later queries for the same file can be answered
+ * without flooding the network again.
+ *
+ * For each filename, the cache keeps the latest response from each of up to Values.MAX_DOWNLOAD_SOURCES origins.
+ * A response is forgotten once it is older than a fixed time to live, since its origin may have left the network
+ * or stopped sharing the file. Expired responses are dropped when their filename is looked up or cached again,
+ * and the whole cache is swept for them at most once per time to live, as responses are put,
+ * so filenames that are never asked for again don't keep their responses until they are pushed out.
+ * The cache holds a bounded number of filenames, and drops the least recently used filename to make room for a new one.
+ *
+ * All methods are synchronized, so the cache can be shared by every connection.
+ */
+class ResponseCache {
+    /**
+     * A cached response and when it was received.
+     */
+    private static class Entry {
+        final Response response;
+        final long time;
+
+        Entry(Response response, long time) {
+            this.response = response;
+            this.time = time;
+        }
+    }
+
+    private final long ttl;
+    private final int maxResponders;
+    // When the whole cache was last swept for expired responses
+    private long lastSweep;
+
+    // Maps filename to its cached responses, oldest first. Kept in access order, so the eldest entry is the least recently used.
+    private final LinkedHashMap<String, List<Entry>> entries;
+
+    /**
+     * Create an empty cache.
+     *
+     * @param capacity The largest number of filenames the cache holds.
+     * @param ttl How long a response stays in the cache, in ms.
+     * @param maxResponders The largest number of responses kept for each filename.
+     */
+    ResponseCache(final int capacity, long ttl, int maxResponders) {
+        this.ttl = ttl;
+        this.maxResponders = maxResponders;
+        this.entries = new LinkedHashMap<String, List<Entry>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<ResponseCache.Entry>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Remember a response, replacing any earlier response from the same origin for the same file.
+     *
+     * @param response The response that passed through this peer.
+     */
+    synchronized void put(Response response) {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep >= ttl) {
+            lastSweep = now;
+            Iterator<List<Entry>> lists = entries.values().iterator();
+            while (lists.hasNext()) {
+                List<Entry> responses = lists.next();
+                removeExpired(responses, now);
+                if (responses.isEmpty())
+                    lists.remove();
+            }
+        }
+
+        List<Entry> responses = entries.get(response.getFilename());
+        if (responses == null) {
+            responses = new ArrayList<>();
+            entries.put(response.getFilename(), responses);
+        }
+
+        InetAddress origin = response.getOrigin();
+        Iterator<Entry> it = responses.iterator();
+        while (it.hasNext()) {
+            Response cached = it.next().response;
+            if (cached.getOrigin().equals(origin) && cached.getPort() == response.getPort())
+                it.remove();
+        }
+        removeExpired(responses, now);
+        if (responses.size() == maxResponders)
+            responses.remove(0);
+        responses.add(new Entry(response, now));
+    }
+
+    /**
+     * Answer a query from the cache.
+     *
+     * @param query The query to answer.
+     * @return Responses to the query on behalf of every origin that recently had the file. Empty if there are none.
+     */
+    synchronized List<Response> answer(Query query) {
+        List<Response> answers = new ArrayList<>();
+        List<Entry> responses = entries.get(query.getFilename());
+        if (responses == null)
+            return answers;
+
+        removeExpired(responses, System.currentTimeMillis());
+        if (responses.isEmpty()) {
+            entries.remove(query.getFilename());
+            return answers;
+        }
+
+        for (Entry e : responses)
+            answers.add(e.response.forQuery(query));
+        return answers;
+    }
+
+    /**
+     * Drop the responses for a filename that are older than the time to live.
+     * Responses are kept oldest first, so the expired ones are at the front.
+     *
+     * @param responses The filename's responses.
+     * @param now The current time, in ms.
+     */
+    private void removeExpired(List<Entry> responses, long now) {
+        while (!responses.isEmpty() && now - responses.get(0).time >= ttl)
+            responses.remove(0);
+    }
+}
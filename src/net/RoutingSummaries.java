@@ -0,0 +1,172 @@
+package net;
+
+import msg.RoutingSummary;
+import util.BloomFilter;
+import util.Log;
+import util.Messages;
+import util.SharedFileIndex;
+import util.Values;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class that keeps the routing summaries sent to each neighbor up to date, and uses the summaries received from them
+ * to decide which neighbors a query is worth forwarding to.
+ *
+ * The summary sent to a neighbor is an attenuated Bloom filter of Values.ROUTING_LEVELS levels.
+ * Level 0 holds this peer's own files, and level i holds level i - 1 of every other neighbor's summary,
+ * so a neighbor that receives it knows which names it can reach in i + 1 hops through this peer.
+ * Summaries are recomputed whenever this peer's files, its set of neighbors, or a summary it received change,
+ * and are only sent to a neighbor if they differ from the last one it got.
+ * Since each level only reaches one hop further than the one before, changes stop spreading after a few hops.
+ *
+ * update(), sharedFilesChanged() and received() may be called from any thread, and mayReach() only reads a volatile field.
+ * Everything else runs on the loop thread, so no locking is needed.
+ */
+class RoutingSummaries {
+    private final EventLoop loop;
+    private final Map<InetAddress, Connection> connections;
+    private final SharedFileIndex sharedFiles;
+
+    // Filter of this peer's own files, rebuilt when the shared files change
+    private BloomFilter ownFiles;
+    // Whether a recomputation is already queued on the loop
+    private boolean updatePending;
+
+    RoutingSummaries(EventLoop loop, Map<InetAddress, Connection> connections, SharedFileIndex sharedFiles) {
+        this.loop = loop;
+        this.connections = connections;
+        this.sharedFiles = sharedFiles;
+    }
+
+    /**
+     * Recompute the summaries soon, because the neighbors or their summaries changed.
+     * Several updates in a row are coalesced into one recomputation. This method can be called from any thread.
+     */
+    void update() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (updatePending)
+                    return;
+                updatePending = true;
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        updatePending = false;
+                        publish();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Recompute the summaries soon, because this peer's shared files changed.
+     * This method can be called from any thread.
+     */
+    void sharedFilesChanged() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                ownFiles = null;
+            }
+        });
+        update();
+    }
+
+    /**
+     * Store the summary that a neighbor sent, and pass what it tells us on to the other neighbors.
+     * This method can be called from any thread.
+     *
+     * @param conn The connection the summary arrived on.
+     * @param summary The neighbor's summary.
+     */
+    void received(Connection conn, RoutingSummary summary) {
+        BloomFilter[] levels = summary.getLevels();
+        // A summary with filters of another size can't be combined with ours, so treat the neighbor as unsummarized.
+        for (BloomFilter level : levels) {
+            if (level.bitCount() != Values.ROUTING_FILTER_BITS || level.hashCount() != Values.ROUTING_FILTER_HASHES) {
+                Log.e(Messages.ERR_ROUTING_SUMMARY(conn.neighborAddr.getHostAddress()));
+                levels = null;
+                break;
+            }
+        }
+        conn.receivedSummary = levels;
+        update();
+    }
+
+    /**
+     * Decide whether a query might find its file through a neighbor.
+     *
+     * @param conn The neighbor's connection.
+     * @param filename The name of the file the query asks for.
+     * @param hopLimit The hop limit the query will have when the neighbor receives it.
+     * @return false only if the neighbor's summary rules out every peer the query could reach through it.
+     */
+    static boolean mayReach(Connection conn, String filename, int hopLimit) {
+        BloomFilter[] levels = conn.receivedSummary;
+        // Without a summary, or if the query can travel further than the summary reaches, we can't rule anything out.
+        if (levels == null || hopLimit >= levels.length)
+            return true;
+
+        // The neighbor answers the query itself, then forwards it up to hopLimit more times.
+        for (int i = 0; i <= hopLimit; i++) {
+            if (levels[i].mightContain(filename))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Compute each neighbor's summary, and send it to the neighbor if it changed.
+     */
+    private void publish() {
+        if (ownFiles == null) {
+            ownFiles = newFilter();
+            for (File f : sharedFiles.files())
+                ownFiles.add(f.getName());
+        }
+
+        List<Connection> neighbors;
+        synchronized (connections) {
+            neighbors = new ArrayList<>(connections.values());
+        }
+
+        for (Connection conn : neighbors) {
+            if (!conn.isAlive())
+                continue;
+
+            BloomFilter[] levels = new BloomFilter[Values.ROUTING_LEVELS];
+            levels[0] = ownFiles;
+            for (int i = 1; i < levels.length; i++) {
+                levels[i] = newFilter();
+                for (Connection other : neighbors) {
+                    BloomFilter[] otherLevels = other.receivedSummary;
+                    if (other != conn && otherLevels != null && i - 1 < otherLevels.length)
+                        levels[i].addAll(otherLevels[i - 1]);
+                }
+            }
+
+            if (Arrays.equals(levels, conn.sentSummary))
+                continue;
+            conn.sentSummary = levels;
+            try {
+                conn.sendPeerMessage(new RoutingSummary(levels, Values.ROUTING_FILTER_HASHES));
+            } catch (IOException e) {
+                if (conn.isAlive())
+                    Log.e(Messages.ERR_ROUTING_SEND(conn.neighborAddr.getHostAddress()), e);
+            }
+        }
+    }
+
+    private static BloomFilter newFilter() {
+        return new BloomFilter(Values.ROUTING_FILTER_BITS, Values.ROUTING_FILTER_HASHES);
+    }
+}
@@ -1,61 +1,94 @@
 package net;
 
+import msg.MessageDecoder;
+import msg.PeerMessage;
+import msg.TransferReply;
+import msg.TransferRequest;
 import util.Log;
 import util.Messages;
-import util.PeerConfig;
+import util.Metrics;
+import util.SharedFileIndex;
 import util.Values;
 
-import java.io.*;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Represents a connection between two peers, used to transfer a file that was previously requested.
+ * Represents a connection between two peers, used to transfer (parts of) files that were previously requested.
  *
  * This class is used by the peer sending the file, whereas the peer receiving the file will use a ReceiveConnection.
+ * The connection stays open after a transfer, so a requester can fetch many ranges over it, and may send
+ * several requests without waiting for the earlier ones to be served. Requests are served one at a time,
+ * in the order they arrived, each with a TransferReply that tells the requester how many bytes follow.
+ *
+ * Each range is streamed from the loop thread: each time the channel drains, the next part is written.
+ * In ExecutionMode.THREADS, the connection's own thread streams the whole range with blocking writes instead.
+ * Files are sent with FileChannel.transferTo(), so the kernel copies them to the socket without touching the heap.
  */
 public class TransferConnection extends AbstractConnection {
-    Thread listener;
-    private Timer reader;
-
-    TransferConnection(final Socket socket) {
-        this.socket = socket;
-
-        reader = new Timer();
-
-        this.listener = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                reader.scheduleAtFixedRate(new TimerTask() {
-                    @Override
-                    public void run() {
-                        byte[] recvBuf = new byte[2048];
-                        int recvLen = -1;
-                        do {
-                            try {
-                                recvLen = socket.getInputStream().read(recvBuf);
-                            } catch (IOException e) {
-                                // Only log an error if the connection is still alive, otherwise stop
-                                if (TransferConnection.this.isAlive())
-                                    Log.e(Messages.ERR_CONNREAD(socket.getInetAddress().getHostAddress()), e);
-                                else return;
-                            }
-                        } while (TransferConnection.this.isAlive() && recvLen < 0);
-
-                        TransferConnection.this.processPacket(recvBuf, recvLen);
-                    }
-                }, 0, Values.READER_INTERVAL);
-            }
-        });
-        listener.setDaemon(true);
+    private static final LongAdder BYTES_SENT = Metrics.get().counter("transfers.bytesSent");
+    private static final LongAdder RANGES_SENT = Metrics.get().counter("transfers.rangesSent");
+
+    // Requests that haven't been served yet, in the order they arrived; only used by the thread reading the channel
+    private final Queue<TransferRequest> requests;
+
+    // Whether a request is being served, and the reply that precedes its range while it hasn't been fully written
+    private boolean serving;
+    private ByteBuffer reply;
+
+    // The file currently being sent and its name, or null if the request being served was refused
+    private ReadableByteChannel source;
+    private String filename;
+
+    // Position of the next byte to send from the source, and how many bytes are left to send
+    private long position, remaining;
+
+    // Only used when the source isn't a FileChannel, holding bytes read from the source but not yet sent
+    private ByteBuffer copyBuffer;
+
+    private final MessageDecoder decoder;
+    // Files that this peer shares, which are the only ones that may be requested
+    private final SharedFileIndex sharedFiles;
+    // The peer's open transfer connections, which this one leaves when it is torn down, and its key there
+    private final Map<InetSocketAddress, TransferConnection> transferConnections;
+    final InetSocketAddress remoteAddr;
+
+    TransferConnection(final SocketChannel channel, EventLoop loop, SharedFileIndex sharedFiles,
+                       Map<InetSocketAddress, TransferConnection> transferConnections) throws IOException {
+        super(channel, loop, 2048);
+        this.sharedFiles = sharedFiles;
+        this.transferConnections = transferConnections;
+        this.remoteAddr = (InetSocketAddress) socket.getRemoteSocketAddress();
+        this.requests = new ArrayDeque<>();
+        this.decoder = new MessageDecoder();
+    }
+
+    /**
+     * Start listening for transfer requests by registering with the loop.
+     * The connection is closed if the requester stalls, or sends no new request for a while.
+     */
+    void start() {
+        armIdleTimeout(Values.TRANSFER_TIMEOUT);
+        drive(SelectionKey.OP_READ);
     }
 
     /**
      * Process an incoming packet.
-     * This packet must be a request to transfer a file.
-     * If it is, transfer the file then teardown this connection, since we don't need it anymore.
+     * This packet must hold requests to transfer ranges of files, which are queued up to be served in order.
+     * If no request is being served, start serving the first one.
      *
      * @param pktData Byte array of the incoming packet that was sent over the socket.
      * @param pktLen Length of the incoming packet
@@ -64,67 +97,196 @@ public class TransferConnection extends AbstractConnection {
         // Don't do anything if packet is empty.
         if (pktLen <= 0) return;
 
-        String message = new String(pktData, 0, pktLen).trim(); // Exclude end-of-transmission character
-
-        // We're only looking for one type of message here
-        if (message.charAt(0) == 'T') {
-            String filename = message.substring(2); // Exclude "T:"
-            Log.i(Messages.TFER_REQRECV(filename, socket.getInetAddress().getHostAddress()));
-
-            sendFile(filename);
+        decoder.feed(pktData, 0, pktLen);
+        try {
+            PeerMessage message;
+            while ((message = decoder.next()) != null) {
+                // We're only looking for one type of message here
+                if (message instanceof TransferRequest) {
+                    TransferRequest request = (TransferRequest) message;
+                    if (Log.isDebug())
+                        Log.d(Messages.TFER_REQRECV(request.getFilename(), socket.getInetAddress().getHostAddress()));
+                    requests.add(request);
+                }
+            }
+        } catch (ProtocolException e) {
+            Log.e(Messages.CONN_PKTWEIRD, e);
+            teardown();
+            return;
+        }
 
-            // This connection isn't needed anymore, we can close it.
+        // A requester that doesn't wait for its requests to be served is misbehaving, so don't queue them forever.
+        if (requests.size() > Values.TRANSFER_PIPELINE_DEPTH) {
+            Log.e(Messages.ERR_TFER_PIPELINE(socket.getInetAddress().getHostAddress()));
             teardown();
+            return;
         }
+
+        if (!serving && nextRange())
+            serve();
     }
 
     /**
-     * Send a file, specified by name, over the socket.
+     * Start serving the next queued request: open the requested file and prepare the reply.
+     * If this peer doesn't share the file, or the range doesn't lie within it, the request is refused instead.
      *
-     * @param filename The name of the file to send.
+     * @return false if no request is queued.
      */
-    private void sendFile(String filename) {
-        File requestedFile = null;
-        for (File f : PeerConfig.get().sharedFileList) {
-            if (f.getName().equals(filename)) {
-                requestedFile = f;
+    private boolean nextRange() {
+        TransferRequest request = requests.poll();
+        if (request == null)
+            return false;
+
+        filename = request.getFilename();
+        source = null;
+        remaining = 0;
+        File requestedFile = sharedFiles.byName(filename);
+        // Compared this way round, a huge offset and length can't overflow into a range that looks valid.
+        if (requestedFile == null || request.getOffset() < 0 || request.getLength() < 0
+                || request.getOffset() > requestedFile.length() - request.getLength()) {
+            Log.e(Messages.ERR_TFER_BADREQ(filename, socket.getInetAddress().getHostAddress()));
+        } else {
+            // The bytes are sent exactly as they are on disk, straight from the file's channel to the socket.
+            try {
+                source = FileChannel.open(requestedFile.toPath(), StandardOpenOption.READ);
+                position = request.getOffset();
+                remaining = request.getLength();
+            } catch (IOException e) {
+                Log.e(Messages.ERR_FILEREAD, e);
             }
         }
-        if (requestedFile == null)
-            return;
 
-        // At this point, we have found the file.
-        // We need to break it up in chunks to send via packets, so we use a FileReader to read the file chunks at a time.
-        Reader fileReader = null;
-        try {
-            fileReader = new BufferedReader(new FileReader(requestedFile));
-        } catch (FileNotFoundException ignored) {} // We can safely assume that the peer has the file, since PeerConfig checks this.
-        assert fileReader != null;
+        reply = new TransferReply(request.getId(), source == null ? -1 : remaining).encode();
+        serving = true;
+        return true;
+    }
 
-        // Send the file!
-        char[] fileChunk = new char[2048];
+    /**
+     * Send the current range and the ones queued after it, until the socket stops accepting data or no requests are left.
+     */
+    private void serve() {
         try {
-            while (fileReader.read(fileChunk) != -1) {
-                byte[] pktData = new String(fileChunk).getBytes(StandardCharsets.UTF_8);
-                socket.getOutputStream().write(pktData);
-            }
+            do {
+                if (!sendRange())
+                    return;
+                finishRange();
+            } while (nextRange());
         } catch (IOException e) {
             if (this.isAlive())
                 Log.e(Messages.ERR_TFER_SEND, e);
+            teardown();
         }
+    }
 
+    /**
+     * Send the reply and file data of the current range until the socket stops accepting them or the range ends.
+     *
+     * @return true if the whole range has been sent, false if the socket is full.
+     * @throws IOException if the file could not be read, ended early, or the channel could not be written.
+     */
+    private boolean sendRange() throws IOException {
+        while (reply.hasRemaining()) {
+            if (channel.write(reply) == 0) {
+                // The socket is full, so continue once the loop reports that it is writable again.
+                loop.setInterest(channel, SelectionKey.OP_WRITE, true);
+                return false;
+            }
+            touch();
+        }
+
+        while (remaining > 0) {
+            long sent;
+            if (source instanceof FileChannel) {
+                // Let the kernel copy from the file to the socket without going through the heap.
+                // A non-blocking socket only takes what fits in its buffer, so this never stalls the loop.
+                FileChannel file = (FileChannel) source;
+                sent = file.transferTo(position, remaining, channel);
+                // transferTo() sends nothing past the end of the file, so if the file has shrunk since the request
+                // was checked, it would keep returning 0 and the loop would keep reporting the socket writable.
+                if (sent == 0 && position >= file.size())
+                    sent = -1;
+            } else {
+                sent = copyChunk();
+            }
+
+            // A blocking socket always takes some bytes, so if none were sent, the file must have shrunk too.
+            // The requester expects the whole range, so the stream can't continue.
+            if (sent < 0 || sent == 0 && loop.isThreaded())
+                throw new EOFException(Messages.ERR_TFER_SHRUNK(filename));
+            if (sent == 0) {
+                // The socket is full, so continue once the loop reports that it is writable again.
+                loop.setInterest(channel, SelectionKey.OP_WRITE, true);
+                return false;
+            }
+            position += sent;
+            remaining -= sent;
+            BYTES_SENT.add(sent);
+            touch();
+        }
+        return true;
+    }
+
+    /**
+     * The current range has been sent, so close its file and get ready for the next request.
+     */
+    private void finishRange() {
+        if (source != null) {
+            if (Log.isDebug())
+                Log.d(Messages.TFER_FINISHED(filename, socket.getInetAddress().getHostAddress()));
+            RANGES_SENT.increment();
+            closeSource();
+            source = null;
+        }
+        serving = false;
+        reply = null;
+    }
+
+    private void closeSource() {
         try {
-            fileReader.close();
+            source.close();
         } catch (IOException e) {
             Log.e(Messages.ERR_FILEREAD, e);
         }
-        Log.i(Messages.TFER_FINISHED(filename, socket.getInetAddress().getHostAddress()));
+    }
+
+    /**
+     * Send part of a source that can't transfer to the socket directly, by copying it through a buffer.
+     *
+     * @return The number of bytes written to the socket, or -1 if the source has no more bytes.
+     * @throws IOException if the source could not be read or the channel could not be written.
+     */
+    private long copyChunk() throws IOException {
+        if (copyBuffer == null) {
+            copyBuffer = ByteBuffer.allocateDirect(65536);
+            copyBuffer.flip();
+        }
+
+        if (!copyBuffer.hasRemaining()) {
+            copyBuffer.clear();
+            if (copyBuffer.limit() > remaining)
+                copyBuffer.limit((int) remaining);
+            int read = source.read(copyBuffer);
+            copyBuffer.flip();
+            if (read < 0)
+                return -1;
+        }
+        return channel.write(copyBuffer);
+    }
+
+    /**
+     * The channel has drained, so send the next part of the range.
+     */
+    @Override
+    protected void onDrained() {
+        if (serving)
+            serve();
     }
 
     @Override
     void teardown() {
-        listener.interrupt();
-        reader.cancel();
+        transferConnections.remove(remoteAddr, this);
+        if (source != null)
+            closeSource();
         super.teardown();
     }
 }
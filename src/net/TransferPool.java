@@ -0,0 +1,114 @@
+package net;
+
+import util.Values;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class that keeps connections to the transfer sockets of other peers open, so that every range fetched from a peer
+ * reuses its connections instead of paying for a new connection (and TCP slow start) each time.
+ *
+ * A range is requested over the connection to its source with the fewest outstanding requests, as long as that is
+ * fewer than Values.TRANSFER_PIPELINE_DEPTH. A new connection is only opened if every connection is that busy.
+ * A periodic sweep closes connections that have had nothing outstanding for Values.TRANSFER_POOL_IDLE ms,
+ * and keeps at most Values.TRANSFER_POOL_SIZE idle connections to each peer.
+ *
+ * Only the loop thread uses the pool, so no locking is needed.
+ */
+class TransferPool {
+    private final EventLoop loop;
+    // Local address that connections are made from
+    private final InetSocketAddress local;
+
+    // Open connections, keyed by the address and transfer port of the peer they lead to
+    private final Map<InetSocketAddress, List<ReceiveConnection>> connections;
+
+    TransferPool(final EventLoop loop, InetSocketAddress local) {
+        this.loop = loop;
+        this.local = local;
+        this.connections = new HashMap<>();
+
+        loop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        evictIdle();
+                    }
+                });
+            }
+        }, Values.TRANSFER_POOL_IDLE / 2, Values.TRANSFER_POOL_IDLE / 2);
+    }
+
+    /**
+     * Request a range of a file from a peer, over a pooled connection if one is free enough.
+     *
+     * @param source Address and transfer port of the peer that has the file.
+     * @param filename The name of the file.
+     * @param offset Offset of the first byte to fetch.
+     * @param length Number of bytes to fetch.
+     * @param outputFile File to write the bytes to, at the same offsets they have in the original.
+     * @param listener Listener to tell once the range has arrived or the request has failed.
+     * @return The request, which can be used to cancel it.
+     * @throws IOException if a new connection was needed, but its socket could not be opened.
+     */
+    ReceiveConnection.Request fetch(InetSocketAddress source, String filename, long offset, long length,
+                                    FileChannel outputFile, ReceiveConnection.Listener listener) throws IOException {
+        List<ReceiveConnection> open = connections.get(source);
+        if (open == null) {
+            open = new ArrayList<>();
+            connections.put(source, open);
+        }
+
+        ReceiveConnection best = null;
+        for (Iterator<ReceiveConnection> it = open.iterator(); it.hasNext(); ) {
+            ReceiveConnection conn = it.next();
+            if (!conn.channel.isOpen()) {
+                it.remove();
+                continue;
+            }
+            int outstanding = conn.outstanding();
+            if (outstanding < Values.TRANSFER_PIPELINE_DEPTH && (best == null || outstanding < best.outstanding()))
+                best = conn;
+        }
+
+        if (best == null) {
+            best = new ReceiveConnection(source, local, loop);
+            open.add(best);
+            best.start();
+        }
+        return best.fetch(filename, offset, length, outputFile, listener);
+    }
+
+    /**
+     * Close the connections that have been idle for too long, and the idle connections beyond the ones to keep.
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Iterator<List<ReceiveConnection>> it = connections.values().iterator(); it.hasNext(); ) {
+            List<ReceiveConnection> open = it.next();
+            int idleKept = 0;
+            for (Iterator<ReceiveConnection> connIt = open.iterator(); connIt.hasNext(); ) {
+                ReceiveConnection conn = connIt.next();
+                if (conn.channel.isOpen() && conn.outstanding() > 0)
+                    continue;
+                if (conn.channel.isOpen() && now - conn.idleSince() < Values.TRANSFER_POOL_IDLE
+                        && ++idleKept <= Values.TRANSFER_POOL_SIZE)
+                    continue;
+
+                conn.teardown();
+                connIt.remove();
+            }
+            if (open.isEmpty())
+                it.remove();
+        }
+    }
+}
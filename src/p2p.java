@@ -1,9 +1,15 @@
+import msg.Query;
+import net.ExecutionMode;
 import net.Peer;
+import util.LocalAddress;
 import util.Log;
 import util.Messages;
 import util.PeerConfig;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
 
@@ -16,18 +22,53 @@ public class p2p {
      * Start the peer.
      *
      * This method mostly does setup, then passes control to a pseudo-shell interface.
+     * Passing "--threads" runs each connection on a thread of its own instead of on the event loop.
+     * Passing "--address <IP>" advertises that address to other peers instead of the one found on the host's interfaces.
+     * Passing "--log-level <level>" sets the lowest level of messages that are logged, and "--log-file <path>"
+     * also writes them to a rotating log file.
      */
     public static void main(String[] args) {
+        ExecutionMode mode = ExecutionMode.EVENT_LOOP;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads")) {
+                mode = ExecutionMode.THREADS;
+            } else if (args[i].equals("--address") && i + 1 < args.length) {
+                try {
+                    // A literal address never needs a lookup, but a hostname is resolved once, here.
+                    LocalAddress.override(InetAddress.getByName(args[++i]));
+                } catch (UnknownHostException e) {
+                    Log.fatal(Messages.ERR_INETHOSTIP, e, 2);
+                }
+            } else if (args[i].equals("--log-level") && i + 1 < args.length) {
+                try {
+                    Log.setLevel(Log.Level.valueOf(args[++i].toUpperCase()));
+                } catch (IllegalArgumentException e) {
+                    System.err.println(Messages.P2P_USAGE);
+                    System.exit(2);
+                }
+            } else if (args[i].equals("--log-file") && i + 1 < args.length) {
+                Log.toFile(new File(args[++i]));
+            } else {
+                System.err.println(Messages.P2P_USAGE);
+                System.exit(2);
+            }
+        }
+
         System.out.println(Messages.WELCOME_MSG);
         System.out.println(Messages.WELCOME_IP());
 
-        // Make sure config is read into singleton class before starting peer.
-        assert PeerConfig.get() != null;
+        // Read the configuration before starting peer.
+        PeerConfig config = null;
+        try {
+            config = PeerConfig.fromFiles();
+        } catch (IOException e) {
+            Log.fatal(Messages.ERR_PEERCONFIG, e, -1);
+        }
 
         // Start the shell
         Peer peer = null;
         try {
-            peer = new Peer();
+            peer = new Peer(mode, config);
         } catch (IOException e) {
             Log.fatal("", e, 1);
         }
@@ -75,11 +116,33 @@ public class p2p {
                     break;
                 case "get":
                 case "Get":
-                    if (argv.length != 2) {
+                    if (argv.length == 2) {
+                        peer.requestFile(argv[1]);
+                    } else if (argv.length == 3 && argv[2].equals("dht")) {
+                        peer.lookupFile(argv[1]);
+                    } else if (argv.length == 3 && argv[2].matches("\\d{1,3}")
+                            && Integer.parseInt(argv[2]) <= Query.MAX_HOP_LIMIT) {
+                        peer.requestFile(argv[1], Integer.parseInt(argv[2]));
+                    } else {
                         System.err.println(Messages.GET_USAGE);
                         continue;
                     }
-                    peer.requestFile(argv[1]);
+                    break;
+                case "rescan":
+                case "Rescan":
+                    if (argv.length != 1) {
+                        System.err.println(Messages.RESCAN_USAGE);
+                        continue;
+                    }
+                    peer.rescanSharedFiles();
+                    break;
+                case "stats":
+                case "Stats":
+                    if (argv.length != 1) {
+                        System.err.println(Messages.STATS_USAGE);
+                        continue;
+                    }
+                    peer.printStats();
                     break;
                 case "leave":
                 case "Leave":
@@ -98,5 +161,6 @@ public class p2p {
 
         // At this point, the peer should no longer be running, so tear it down.
         peer.teardown();
+        Log.flush();
     }
 }
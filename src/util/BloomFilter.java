@@ -0,0 +1,131 @@
+package util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Fixed-size Bloom filter over strings, used to summarize which filenames can be found through a neighbor.
+ *
+ * A filter can answer that a name is definitely not in it, or that it might be. Filters are sent between peers,
+ * so the hash functions must give the same bits on every peer: they are derived from a 64-bit FNV-1a hash
+ * of the UTF-8 encoded name, split into two halves and combined as h1 + i * h2 for the i-th hash function.
+ */
+public class BloomFilter {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final byte[] bits;
+    private final int hashes;
+
+    /**
+     * Create an empty filter.
+     *
+     * @param bitCount Number of bits in the filter, which must be a positive multiple of 8.
+     * @param hashes Number of bits set for each name.
+     */
+    public BloomFilter(int bitCount, int hashes) {
+        this(new byte[bitCount / 8], hashes);
+        if (bitCount <= 0 || bitCount % 8 != 0)
+            throw new IllegalArgumentException("Bit count " + bitCount + " is not a positive multiple of 8");
+    }
+
+    /**
+     * Recreate a filter from its bits, as returned by toBytes().
+     *
+     * @param bits The filter's bits. The array is used as is, not copied.
+     * @param hashes Number of bits set for each name.
+     */
+    public BloomFilter(byte[] bits, int hashes) {
+        this.bits = bits;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Add a name to the filter.
+     *
+     * @param name The name to add.
+     */
+    public void add(String name) {
+        long hash = hash(name);
+        // Force the step to be odd, so it is never zero and never shares a factor of two with the bit count.
+        int h1 = (int) hash, h2 = (int) (hash >>> 32) | 1;
+        int bitCount = bits.length * 8;
+        for (int i = 0; i < hashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, bitCount);
+            bits[bit >>> 3] |= 1 << (bit & 7);
+        }
+    }
+
+    /**
+     * @param name A name.
+     * @return false if the name was definitely never added to the filter, true if it might have been.
+     */
+    public boolean mightContain(String name) {
+        long hash = hash(name);
+        int h1 = (int) hash, h2 = (int) (hash >>> 32) | 1;
+        int bitCount = bits.length * 8;
+        for (int i = 0; i < hashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, bitCount);
+            if ((bits[bit >>> 3] & (1 << (bit & 7))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Add every name in another filter to this one.
+     *
+     * @param other A filter with the same number of bits and hash functions.
+     */
+    public void addAll(BloomFilter other) {
+        if (other.bits.length != bits.length || other.hashes != hashes)
+            throw new IllegalArgumentException("Filters have different sizes");
+        for (int i = 0; i < bits.length; i++)
+            bits[i] |= other.bits[i];
+    }
+
+    /**
+     * @return The number of bits in the filter.
+     */
+    public int bitCount() {
+        return bits.length * 8;
+    }
+
+    /**
+     * @return The number of bits set for each name.
+     */
+    public int hashCount() {
+        return hashes;
+    }
+
+    /**
+     * @return The filter's bits. The array is not copied, so it must not be modified.
+     */
+    public byte[] toBytes() {
+        return bits;
+    }
+
+    private static long hash(String name) {
+        long hash = FNV_OFFSET;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null || this.getClass() != obj.getClass())
+            return false;
+        BloomFilter that = (BloomFilter) obj;
+        return this.hashes == that.hashes && Arrays.equals(this.bits, that.bits);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * hashes + Arrays.hashCode(bits);
+    }
+}
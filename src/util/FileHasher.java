@@ -0,0 +1,167 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Class that computes SHA-256 digests of files and of their pieces, on its own threads.
+ *
+ * Hashing a file means reading all of it, so it must never run on the network thread.
+ * Callers hand hashing work to execute(), and send the results back to the loop themselves.
+ * Digests of shared files are cached, and recomputed only if the file changes.
+ */
+public class FileHasher {
+    /**
+     * Length of a SHA-256 digest, in bytes.
+     */
+    public static final int DIGEST_LENGTH = 32;
+
+    /**
+     * Digests of a whole file and of each of its pieces, as of when the file had a certain length and modification time.
+     */
+    public static class Digests {
+        public final byte[] file;
+        // The digest of every piece, one after the other
+        public final byte[] pieces;
+
+        final long length, lastModified;
+
+        Digests(byte[] file, byte[] pieces, long length, long lastModified) {
+            this.file = file;
+            this.pieces = pieces;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return The length of the file that was hashed, in bytes.
+         */
+        public long length() {
+            return length;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final Map<String, Digests> cache;
+
+    public FileHasher() {
+        executor = Executors.newFixedThreadPool(Values.HASHER_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "p2p-hasher");
+                // Hashing should not keep the peer alive.
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        cache = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Run hashing work on one of the hasher's threads.
+     *
+     * @param task The work to run.
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Get the digests of a file, computing them if they aren't cached or the file has changed since.
+     * This reads the whole file, so it should only be called from a task passed to execute().
+     *
+     * @param file The file to hash.
+     * @return The digests of the file and its pieces.
+     * @throws IOException if the file could not be read.
+     */
+    public Digests digests(File file) throws IOException {
+        Digests cached = cache.get(file.getPath());
+        if (cached != null && cached.length == file.length() && cached.lastModified == file.lastModified())
+            return cached;
+
+        long lastModified = file.lastModified();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int pieceCount = (int) ((size + Values.PIECE_SIZE - 1) / Values.PIECE_SIZE);
+            ByteBuffer pieces = ByteBuffer.allocate(pieceCount * DIGEST_LENGTH);
+
+            // Hash the whole file and each piece in a single pass.
+            MessageDigest fileDigest = sha256();
+            MessageDigest pieceDigest = sha256();
+            ByteBuffer buf = ByteBuffer.allocateDirect(65536);
+            long position = 0;
+            for (int i = 0; i < pieceCount; i++) {
+                long pieceEnd = Math.min(position + Values.PIECE_SIZE, size);
+                while (position < pieceEnd) {
+                    buf.clear();
+                    buf.limit((int) Math.min(buf.capacity(), pieceEnd - position));
+                    int read = channel.read(buf, position);
+                    if (read < 0)
+                        throw new IOException("File " + file + " ended while hashing it.");
+                    position += read;
+                    buf.flip();
+                    fileDigest.update(buf.duplicate());
+                    pieceDigest.update(buf);
+                }
+                pieces.put(pieceDigest.digest());
+            }
+
+            Digests digests = new Digests(fileDigest.digest(), pieces.array(), size, lastModified);
+            cache.put(file.getPath(), digests);
+            return digests;
+        }
+    }
+
+    /**
+     * Compute the digest of a range of a file.
+     * This reads the whole range, so it should only be called from a task passed to execute().
+     *
+     * @param channel Channel of the file, which must be open for reading.
+     * @param offset Offset of the first byte of the range.
+     * @param length Length of the range.
+     * @return The SHA-256 digest of the range.
+     * @throws IOException if the range could not be read.
+     */
+    public static byte[] hashRange(FileChannel channel, long offset, long length) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer buf = ByteBuffer.allocateDirect(65536);
+        long position = offset, end = offset + length;
+        while (position < end) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), end - position));
+            int read = channel.read(buf, position);
+            if (read < 0)
+                throw new IOException("File ended while hashing it.");
+            position += read;
+            buf.flip();
+            digest.update(buf);
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Stop the hasher's threads. Work that hasn't started yet is dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,209 @@
+package util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer that runs every timed task of a peer, such as heartbeats, liveness checks and timeouts, on one thread.
+ *
+ * Tasks are kept in a hashed timing wheel: a ring of buckets, each covering one tick of time.
+ * A task goes in the bucket of the tick it is due in, along with the number of full turns of the wheel left
+ * before it is due. Each tick, the timer only looks at one bucket, so scheduling and cancelling a task take
+ * constant time, and the cost of a tick doesn't grow with the number of scheduled tasks.
+ * The price is precision: a task runs up to one tick late.
+ *
+ * Tasks run on the timer's thread, so they must be short. Anything slow should be handed to another thread.
+ */
+public class HashedWheelTimer {
+    /**
+     * Handle of a scheduled task, used to cancel it.
+     */
+    public interface Timeout {
+        /**
+         * Stop the task from running again. Has no effect on a run that already started.
+         */
+        void cancel();
+    }
+
+    /**
+     * A scheduled task. Links into the list of its bucket; only the timer's thread touches the links.
+     */
+    private static class Task implements Timeout {
+        final Runnable runnable;
+        final long periodNanos;
+        // When the task is next due, relative to the timer's start
+        long deadlineNanos;
+        long remainingRounds;
+        volatile boolean cancelled;
+
+        Task prev, next;
+
+        Task(Runnable runnable, long deadlineNanos, long periodNanos) {
+            this.runnable = runnable;
+            this.deadlineNanos = deadlineNanos;
+            this.periodNanos = periodNanos;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    // Dummy heads of each bucket's circular list of tasks
+    private final Task[] buckets;
+
+    // Tasks scheduled by any thread that haven't been put in their bucket yet
+    private final Queue<Task> incoming;
+
+    private final long startNanos;
+    private final Thread worker;
+    // Different threads access this, so make it volatile
+    private volatile boolean running;
+
+    // Number of ticks processed so far; only used by the worker
+    private long tick;
+
+    /**
+     * Create a timer and start its thread.
+     *
+     * @param name Name of the timer's thread.
+     * @param tickMs Length of a tick, in ms.
+     * @param wheelSize Number of buckets in the wheel, rounded up to a power of two.
+     * Delays longer than tickMs * wheelSize still work, but take a few turns of the wheel.
+     */
+    public HashedWheelTimer(String name, long tickMs, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        int size = Integer.highestOneBit(Math.max(wheelSize, 2) * 2 - 1);
+        this.mask = size - 1;
+        this.buckets = new Task[size];
+        for (int i = 0; i < size; i++) {
+            Task head = new Task(null, 0, 0);
+            head.prev = head.next = head;
+            buckets[i] = head;
+        }
+        this.incoming = new ConcurrentLinkedQueue<>();
+        this.startNanos = System.nanoTime();
+
+        running = true;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, name);
+        // The timer should not keep the peer alive.
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Run a task once after a delay. Can be called from any thread.
+     *
+     * @param task The task to run.
+     * @param delayMs Delay before the task runs, in ms.
+     * @return A handle to cancel the task with.
+     */
+    public Timeout schedule(Runnable task, long delayMs) {
+        return schedule(task, delayMs, 0);
+    }
+
+    /**
+     * Run a task repeatedly, at a fixed rate. Can be called from any thread.
+     *
+     * @param task The task to run.
+     * @param delayMs Delay before the first run, in ms.
+     * @param periodMs Time between runs, in ms, or 0 to run the task only once.
+     * @return A handle to cancel the task with.
+     */
+    public Timeout schedule(Runnable task, long delayMs, long periodMs) {
+        long deadline = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMs, 0));
+        Task t = new Task(task, deadline, TimeUnit.MILLISECONDS.toNanos(periodMs));
+        incoming.add(t);
+        return t;
+    }
+
+    /**
+     * Stop the timer. Tasks that haven't run yet never will.
+     */
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void work() {
+        while (running) {
+            // Wait for the end of the current tick.
+            long sleepNanos = (tick + 1) * tickNanos - (System.nanoTime() - startNanos);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    // Only stop() interrupts the worker.
+                    continue;
+                }
+            }
+
+            Task t;
+            while ((t = incoming.poll()) != null)
+                insert(t);
+            expire(buckets[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    /**
+     * Put a task in the bucket of the tick it is due in. A task that is already overdue goes in the current bucket.
+     * The bucket comes up once per turn of the wheel, so the task also counts the turns to wait before it runs.
+     */
+    private void insert(Task t) {
+        if (t.cancelled)
+            return;
+        long due = Math.max(t.deadlineNanos / tickNanos, tick);
+        t.remainingRounds = (due - tick) / buckets.length;
+
+        Task head = buckets[(int) (due & mask)];
+        t.prev = head.prev;
+        t.next = head;
+        head.prev.next = t;
+        head.prev = t;
+    }
+
+    /**
+     * Run every task in a bucket that is due this turn of the wheel, and drop cancelled ones.
+     */
+    private void expire(Task head) {
+        Task t = head.next;
+        while (t != head) {
+            Task next = t.next;
+            if (t.cancelled || t.remainingRounds == 0) {
+                t.prev.next = next;
+                next.prev = t.prev;
+                t.prev = t.next = null;
+
+                if (!t.cancelled)
+                    run(t);
+            } else {
+                t.remainingRounds--;
+            }
+            t = next;
+        }
+    }
+
+    private void run(Task t) {
+        try {
+            t.runnable.run();
+        } catch (RuntimeException e) {
+            Log.e(Messages.ERR_TIMER_TASK, e);
+        }
+
+        if (t.periodNanos > 0 && !t.cancelled) {
+            // Go through the incoming queue, so the task isn't put back in the bucket that is being expired.
+            t.deadlineNanos += t.periodNanos;
+            incoming.add(t);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative values, such as latencies, with a fixed relative precision, in the style of HdrHistogram.
+ *
+ * Values below 16 each get a bucket of their own. Above that, each power of two is split into 16 equal buckets,
+ * so a value is known to within 1/16 (about 6%) of itself, whatever its size, using under a thousand buckets in all.
+ * Recording a value is a few atomic additions and never allocates or locks, so any thread can record at any time.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((Long.SIZE - SUB_BITS + 1) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value. Negative values are recorded as 0.
+     *
+     * @param value The value to record.
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value))
+            m = max.get();
+    }
+
+    /**
+     * @return The number of values recorded.
+     */
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * @return The mean of the values recorded, or 0 if there are none.
+     */
+    public double mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @return The largest value recorded, or 0 if there are none.
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * @param fraction The fraction of values at or below the result, between 0 and 1, e.g. 0.99 for the 99th percentile.
+     * @return The value at that percentile, rounded down to its bucket's lowest value, or 0 if there are none.
+     */
+    public long percentile(double fraction) {
+        long target = (long) Math.ceil(fraction * count.sum());
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target && seen > 0)
+                return lowestValueOf(i);
+        }
+        return 0;
+    }
+
+    /**
+     * @return A one-line summary: the count, mean, median, 90th and 99th percentiles and the maximum.
+     */
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d",
+                count(), mean(), percentile(0.5), percentile(0.9), percentile(0.99), max());
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowestValueOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        return (1L << exponent) | (sub << (exponent - SUB_BITS));
+    }
+}
@@ -0,0 +1,95 @@
+package util;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.Enumeration;
+
+/**
+ * Class that provides the IP address this peer advertises to others, in pings, pongs and responses.
+ *
+ * The address is picked from the host's network interfaces when the class is loaded, and cached, so asking for it
+ * never waits on the network. refresh() picks it again, e.g. periodically in case the host moved networks.
+ * An address set with override() is used instead, e.g. the public address of a host behind NAT.
+ *
+ * Interfaces that are up are preferred in this order: public IPv4 addresses, private IPv4 addresses,
+ * then any other non-link-local address. If there are none, the loopback address is used.
+ */
+public class LocalAddress {
+    // Different threads access these, so make them volatile
+    private static volatile InetAddress override;
+    private static volatile InetAddress resolved = scan();
+
+    /**
+     * @return The address this peer advertises: the override if one was set, otherwise the resolved address.
+     */
+    public static InetAddress get() {
+        InetAddress address = override;
+        return address != null ? address : resolved;
+    }
+
+    /**
+     * Advertise a specific address instead of the one found on the network interfaces.
+     *
+     * @param address The address to advertise, or null to go back to the resolved address.
+     */
+    public static void override(InetAddress address) {
+        override = address;
+    }
+
+    /**
+     * Pick the address from the network interfaces again. This only looks at local interfaces, so it is quick.
+     */
+    public static void refresh() {
+        InetAddress address = scan();
+        if (!address.equals(resolved)) {
+            Log.i(Messages.ADDR_CHANGED(resolved.getHostAddress(), address.getHostAddress()));
+            resolved = address;
+        }
+    }
+
+    /**
+     * Look through the network interfaces for the best address to advertise.
+     */
+    private static InetAddress scan() {
+        InetAddress best = null;
+        int bestRank = Integer.MAX_VALUE;
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            if (interfaces != null) {
+                for (NetworkInterface ni : Collections.list(interfaces)) {
+                    if (!ni.isUp() || ni.isLoopback())
+                        continue;
+                    for (InetAddress address : Collections.list(ni.getInetAddresses())) {
+                        int rank = rank(address);
+                        if (rank < bestRank) {
+                            best = address;
+                            bestRank = rank;
+                        }
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            Log.e(Messages.ERR_INETHOSTIP, e);
+        }
+
+        if (best == null) {
+            Log.e(Messages.ERR_NOADDR);
+            return InetAddress.getLoopbackAddress();
+        }
+        return best;
+    }
+
+    /**
+     * @return How good an address is to advertise, lower being better, or Integer.MAX_VALUE if it is unusable.
+     */
+    private static int rank(InetAddress address) {
+        if (address.isLoopbackAddress() || address.isLinkLocalAddress() || address.isAnyLocalAddress())
+            return Integer.MAX_VALUE;
+        if (address instanceof Inet4Address)
+            return address.isSiteLocalAddress() ? 1 : 0;
+        return 2;
+    }
+}
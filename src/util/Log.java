@@ -1,22 +1,140 @@
 package util;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
 /**
- * Utilities for logging messages to standard output and error.
+ * Utilities for logging messages to standard output and error, and optionally to a file.
  * Uses VT100 escape sequences to control cursor movement, since a prompt is also displayed on standard output.
+ *
+ * Logging never does I/O on the calling thread. Messages go into a fixed-size lock-free ring buffer,
+ * and a single background thread writes them out, flushing once for each batch rather than once for each message.
+ * If the buffer is full, the message is dropped and counted rather than making the caller wait;
+ * the writer reports how many were dropped once it catches up.
+ *
+ * Messages below the current level are discarded before they are queued. Chatty messages, such as one for every
+ * query forwarded, are at the debug level, which is off by default, and hot paths check isDebug() before building
+ * them, so they cost nothing unless they are wanted.
  */
 public class Log {
     public static String PROMPT = "> ";
 
+    public enum Level { DEBUG, INFO, ERROR }
+
+    /**
+     * A message waiting in the ring buffer.
+     */
+    private static class Entry {
+        final Level level;
+        final long time;
+        final String text;
+        final Exception exception;
+
+        Entry(Level level, String text, Exception exception) {
+            this.level = level;
+            this.time = System.currentTimeMillis();
+            this.text = text;
+            this.exception = exception;
+        }
+    }
+
+    private static volatile Level level = Level.INFO;
+
+    // Ring buffer of Values.LOG_BUFFER_SIZE entries. A producer claims the slot at tail with a CAS,
+    // and the writer takes slots from head. Each slot's sequence number says whose turn it is:
+    // a slot at position p is free for the producer of position p when its sequence is p,
+    // and holds that producer's entry for the writer when its sequence is p + 1.
+    private static final int CAPACITY = Integer.highestOneBit(Values.LOG_BUFFER_SIZE);
+    private static final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    // Position of the next entry for the writer, and the position up to which entries have been written and flushed.
+    // Only the writer thread moves them, but flush() reads the latter to wait for the writer to catch up
+    private static long head;
+    private static volatile long written;
+
+    private static final LongAdder dropped = new LongAdder();
+    private static long droppedReported;
+
+    private static volatile boolean writerParked;
+    private static final Thread writer;
+
+    // Rotating file sink, if one was opened. Only used by the writer thread, once opened
+    private static volatile File logFile;
+    private static OutputStream fileOut;
+    private static long fileBytes;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++)
+            sequences.set(i, i);
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true)
+                    drain();
+            }
+        }, "log-writer");
+        // The writer should not keep the peer running.
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Set the lowest level of messages that are logged.
+     *
+     * @param newLevel The level.
+     */
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * @return Whether debug messages are logged. Hot paths check this before building a debug message.
+     */
+    public static boolean isDebug() {
+        return level == Level.DEBUG;
+    }
+
+    /**
+     * Also write every message to a file, with a timestamp. When the file reaches Values.LOG_FILE_MAX_BYTES,
+     * it is renamed to "{name}.1", older files move up by one, and those past Values.LOG_FILE_COUNT are deleted.
+     *
+     * @param file The file to write to. Messages are appended if it exists.
+     */
+    public static void toFile(File file) {
+        logFile = file;
+    }
+
+    /**
+     * Print a debug message to standard output, if debug messages are on.
+     *
+     * @param msg The message to print
+     */
+    public static void d(String msg) {
+        log(Level.DEBUG, msg, null);
+    }
+
     /**
      * Print an informational message to standard output.
      *
      * @param msg The message to print
      */
     public static void i(String msg) {
-        System.out.println("\033[2K\r" + msg);
-        System.out.flush();
-        System.out.print(PROMPT);
-        System.out.flush();
+        log(Level.INFO, msg, null);
     }
 
     /**
@@ -35,13 +153,7 @@ public class Log {
      * @param e The exception that was caught
      */
     public static void e(String err, Exception e) {
-        System.out.print("\033[2K\r");
-        System.err.println(err);
-        if (e != null)
-            e.printStackTrace();
-        System.err.flush();
-        System.out.print(PROMPT);
-        System.out.flush();
+        log(Level.ERROR, err, e);
     }
 
     /**
@@ -54,6 +166,167 @@ public class Log {
      */
     public static void fatal(String err, Exception e, int code) {
         Log.e(err, e);
+        flush();
         System.exit(code);
     }
+
+    /**
+     * Wait, for a second at most, until every message logged so far has been written. Used before exiting.
+     */
+    public static void flush() {
+        long target = tail.get();
+        long deadline = System.currentTimeMillis() + 1000;
+        while (written < target && System.currentTimeMillis() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(1000000);
+        }
+    }
+
+    /**
+     * Queue a message for the writer, or drop it if the buffer is full. Never blocks.
+     */
+    private static void log(Level msgLevel, String text, Exception exception) {
+        if (msgLevel.compareTo(level) < 0)
+            return;
+
+        Entry entry = new Entry(msgLevel, text, exception);
+        while (true) {
+            long pos = tail.get();
+            int slot = (int) (pos & (CAPACITY - 1));
+            long seq = sequences.get(slot);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.set(slot, entry);
+                    sequences.set(slot, pos + 1);
+                    break;
+                }
+            } else if (seq < pos) {
+                // The writer hasn't freed this slot from the last lap yet, so the buffer is full.
+                dropped.increment();
+                return;
+            }
+            // Otherwise another producer claimed the slot first, so try the next one.
+        }
+
+        if (writerParked)
+            LockSupport.unpark(writer);
+    }
+
+    /**
+     * Write out every queued message, then wait for more. Only called on the writer thread.
+     */
+    private static void drain() {
+        boolean wroteOut = false, wroteErr = false;
+        while (true) {
+            int slot = (int) (head & (CAPACITY - 1));
+            if (sequences.get(slot) != head + 1)
+                break;
+            Entry entry = slots.get(slot);
+            slots.set(slot, null);
+            sequences.set(slot, head + CAPACITY);
+            head++;
+
+            write(entry);
+            if (entry.level == Level.ERROR)
+                wroteErr = true;
+            else
+                wroteOut = true;
+        }
+
+        long droppedNow = dropped.sum();
+        if (droppedNow != droppedReported) {
+            write(new Entry(Level.ERROR, Messages.LOG_DROPPED(droppedNow - droppedReported), null));
+            droppedReported = droppedNow;
+            wroteErr = true;
+        }
+
+        // Flush once for the whole batch, and redraw the prompt under the last message.
+        if (wroteErr)
+            System.err.flush();
+        if (wroteOut || wroteErr) {
+            System.out.print(PROMPT);
+            System.out.flush();
+            flushFile();
+            written = head;
+            return;
+        }
+
+        writerParked = true;
+        // Check again after announcing that we're parking, so a message queued in between isn't left waiting.
+        int slot = (int) (head & (CAPACITY - 1));
+        if (sequences.get(slot) != head + 1)
+            LockSupport.parkNanos(100000000);
+        writerParked = false;
+    }
+
+    private static void write(Entry entry) {
+        System.out.print("\033[2K\r");
+        if (entry.level == Level.ERROR) {
+            System.out.flush();
+            System.err.println(entry.text);
+            if (entry.exception != null)
+                entry.exception.printStackTrace();
+        } else {
+            System.out.println(entry.text);
+        }
+        writeFile(entry);
+    }
+
+    private static void writeFile(Entry entry) {
+        File file = logFile;
+        if (file == null)
+            return;
+
+        StringBuilder line = new StringBuilder();
+        line.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(entry.time)))
+                .append(' ').append(entry.level).append(' ').append(entry.text).append('\n');
+        if (entry.exception != null) {
+            StringWriter trace = new StringWriter();
+            entry.exception.printStackTrace(new PrintWriter(trace));
+            line.append(trace);
+        }
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+
+        try {
+            if (fileOut != null && fileBytes + bytes.length > Values.LOG_FILE_MAX_BYTES)
+                rotate(file);
+            if (fileOut == null) {
+                fileOut = new BufferedOutputStream(new FileOutputStream(file, true));
+                fileBytes = file.length();
+            }
+            fileOut.write(bytes);
+            fileBytes += bytes.length;
+        } catch (IOException e) {
+            // There is nowhere left to log this, so stop writing to the file and say so on the console.
+            logFile = null;
+            System.err.println(Messages.ERR_LOGFILE);
+            e.printStackTrace();
+        }
+    }
+
+    private static void rotate(File file) throws IOException {
+        fileOut.close();
+        fileOut = null;
+        for (int i = Values.LOG_FILE_COUNT - 1; i >= 1; i--) {
+            File older = new File(file.getPath() + "." + i);
+            if (!older.exists())
+                continue;
+            File renamed = new File(file.getPath() + "." + (i + 1));
+            if (i + 1 >= Values.LOG_FILE_COUNT)
+                older.delete();
+            else
+                older.renameTo(renamed);
+        }
+        file.renameTo(new File(file.getPath() + ".1"));
+    }
+
+    private static void flushFile() {
+        if (fileOut == null)
+            return;
+        try {
+            fileOut.flush();
+        } catch (IOException e) {
+            System.err.println(Messages.ERR_LOGFILE);
+        }
+    }
 }
@@ -9,13 +9,17 @@ import msg.Response;
 public class Messages {
     // Debug / logging messages
     public static String WELCOME_MSG = "Starting P2P node...";
-    public static String WELCOME_IP() { return "Your current IP address is: " + Values.ownIPAddr().getHostAddress(); }
+    public static String WELCOME_IP() { return "Your current IP address is: " + LocalAddress.get().getHostAddress(); }
     public static String SHELL_READY = "Ready. Type a command.";
 
     public static String TRDN_CONNCLOSING = "Closing all neighboring connections...";
     public static String TRDN_NOCONNS = "No connections to close.";
     public static String TRDN_CONNCLOSED = "Successfully closed all neighboring connections and left the P2P network.";
 
+    public static String RESCAN_DONE(int count) {
+        return "Rebuilt the shared file index with " + count + " file(s).";
+    }
+
     public static String PING_SEND = "Sending ping to ";
     public static String PING_RECV = "Received ping from ";
     public static String PONG_SEND = "Sending pong to ";
@@ -31,9 +35,26 @@ public class Messages {
         return "Successfully established new connection with " + ip + ".";
     }
 
+    public static String MEMBER_SUSPECT(String ip) {
+        return "No ack from " + ip + ", suspecting it has failed.";
+    }
+    public static String MEMBER_DEAD(String ip) {
+        return ip + " did not refute suspicion in " + Values.GOSSIP_SUSPECT_TIMEOUT / 1000 + "s, so it is considered dead.";
+    }
+    public static String CONN_DEAD(String ip) {
+        return "Closing connection with " + ip + ", which is considered dead.";
+    }
+
+    public static String DHT_LOOKUP(String filename) {
+        return "Looking up providers of " + filename + " in the DHT.";
+    }
+    public static String DHT_NOTFOUND(String filename) {
+        return "The DHT has no providers of " + filename + ".";
+    }
+
     public static String HBEAT_SEND = "Sending heartbeat to ";
     public static String HBEAT_TOUT(String ip) {
-        return "No heartbeat received from " + ip + " in " + Values.HEARTBEAT_INTERVAL / 1000 + "s. Closing connection.";
+        return "Nothing received from " + ip + " in " + Values.HEARTBEAT_TIMEOUT / 1000 + "s. Closing connection.";
     }
     public static String HBEAT_RECV(String ip) {
         return "Heartbeat received from " + ip + ".";
@@ -51,6 +72,15 @@ public class Messages {
     public static String QUERY_NOHASFILE(Query q) {
         return "Did not find matching file \"" + q.getFilename() + "\" for query from " + q.originAddr + ".";
     }
+    public static String QUERY_HOPLIMIT(Query q) {
+        return "Query for \"" + q.getFilename() + "\" reached its hop limit after " + q.getHops() + " hop(s), not forwarding it.";
+    }
+    public static String QUERY_CACHEHIT(Query q, int count) {
+        return "Answering query for \"" + q.getFilename() + "\" with " + count + " cached response(s).";
+    }
+    public static String QUERY_NOROUTE(Query q) {
+        return "No neighbor's routing summary includes \"" + q.getFilename() + "\", not sending the query anywhere.";
+    }
     public static String QUERY_FWD(Query q, String ip) {
         return "Forwarding query for \"" + q.getFilename() + "\" to " + ip + ".";
     }
@@ -62,8 +92,8 @@ public class Messages {
     public static String TFER_ACPT(String ip) {
         return "Accepting new transfer request from " + ip + ".";
     }
-    public static String REQ_TFER(Response r) {
-        return "Requesting a transfer of file \"" + r.getFilename() + "\" from " + r.getOrigin().getHostAddress() + ".";
+    public static String REQ_TFER(String filename, int piece, String ip) {
+        return "Requesting piece " + piece + " of file \"" + filename + "\" from " + ip + ".";
     }
     public static String TFER_REQRECV(String filename, String ip) {
         return "Received a request from " + ip + " to transfer file \"" + filename + "\".";
@@ -72,16 +102,46 @@ public class Messages {
         return "Sent file \"" + filename + "\" to " + ip + ".";
     }
 
+    public static String DL_SOURCE(String filename, String ip) {
+        return "Found file \"" + filename + "\" at " + ip + ".";
+    }
+    public static String DL_START(String filename, int sources) {
+        return "Downloading file \"" + filename + "\" from " + sources + " peer(s).";
+    }
+    public static String DL_RESUME(String filename, int piecesDone, int pieceCount) {
+        return "Resuming download of file \"" + filename + "\" with " + piecesDone + " of " + pieceCount + " pieces already received.";
+    }
+    public static String DL_FINISHED(String filename, long size) {
+        return "Finished downloading file \"" + filename + "\" (" + size + " bytes).";
+    }
+
     // Error messages
     public static String SHELL_CNF = " is not a valid command.";
+    public static String P2P_USAGE = "Usage: java p2p [--threads] [--address <IP>] [--log-level debug|info|error] [--log-file <path>]";
     public static String CONNECT_USAGE = "Usage: connect <IP> <port>";
-    public static String GET_USAGE = "Usage: get <file>";
+    public static String GET_USAGE = "Usage: get <file> [hop limit, 0-" + Query.MAX_HOP_LIMIT + " | dht]";
+    public static String RESCAN_USAGE = "Usage: rescan";
+    public static String STATS_USAGE = "Usage: stats";
 
     public static String ERR_PEERCONFIG = "There was a problem reading the peer configuration.";
-    public static String ERR_CHECKIP = "Using external checkip service failed, trying InetAddress.";
     public static String ERR_INETHOSTIP = "Something went wrong when trying to get a host's IP address.";
+    public static String ERR_NOADDR = "No network interface has a usable IP address, so using the loopback address.";
+    public static String ADDR_CHANGED(String oldIP, String newIP) {
+        return "This host's IP address changed from " + oldIP + " to " + newIP + ".";
+    }
 
     public static String ERR_UDP_PKTRECV = "There was a problem receiving a packet from the UDP socket.";
+    public static String ERR_UDP_BADPKT(String ip) {
+        return "Dropped a malformed discovery packet from " + ip + ".";
+    }
+    public static String ERR_DHT_PACKET(String ip) {
+        return "Received a malformed DHT packet from " + ip + ".";
+    }
+    public static String ERR_METRICS_JMX = "Could not register the metrics with JMX; they can still be seen with \"stats\".";
+    public static String ERR_LOGFILE = "Could not write to the log file, so only logging to the console from now on.";
+    public static String LOG_DROPPED(long count) {
+        return count + " log message(s) were dropped because they arrived faster than they could be written.";
+    }
     public static String ERR_UDP_PKTSEND = "There was a problem sending a packet through the UDP socket.";
     public static String ERR_UDP_PORTOPEN = "There was a problem opening a UDP socket.";
 
@@ -96,6 +156,9 @@ public class Messages {
     public static String ERR_CONNREAD(String ip) {
         return "There was a problem reading data from the connection with " + ip + ".";
     }
+    public static String ERR_CONNWRITE(String ip) {
+        return "There was a problem writing data to the connection with " + ip + ".";
+    }
 
     public static String ERR_QUERYSEND(String ip) {
         return "There was a problem sending a new query to " + ip + ".";
@@ -103,15 +166,32 @@ public class Messages {
     public static String ERR_QUERYFWD(String ip) {
         return "There was a problem forwarding a query to " + ip + ".";
     }
+    public static String ERR_ROUTING_SEND(String ip) {
+        return "Failed to send routing summary to " + ip + ".";
+    }
+    public static String ERR_ROUTING_SUMMARY(String ip) {
+        return "Ignoring routing summary from " + ip + " with filters of an unexpected size.";
+    }
 
     public static String ERR_RESPSEND(String ip) {
         return "There was a problem sending a new response to " + ip + ".";
     }
+    public static String ERR_RESP_TOOLARGE(String filename) {
+        return "Not answering a query for file \"" + filename + "\", since it is too large to describe in a response.";
+    }
     public static String ERR_RESPUNK = "Received an unknown response.";
     public static String ERR_RESPFWD(String ip) {
         return "There was a problem forwarding a reponse to " + ip + ".";
     }
 
+    public static String EXEC_THREADS(boolean virtual) {
+        return "Running each connection on its own " + (virtual ? "virtual" : "platform") + " thread.";
+    }
+    public static String ERR_TIMER_TASK = "There was a problem running a timed task.";
+    public static String ERR_LOOP_REGISTER = "There was a problem registering a socket with the event loop.";
+    public static String ERR_LOOP_SELECT = "There was a problem waiting for socket events.";
+    public static String ERR_LOOP_TASK = "There was a problem handling a socket event.";
+
     public static String ERR_SOCKOPEN = "There was a problem opening a socket.";
     public static String ERR_SOCKCLOSE = "There was a problem closing a socket.";
 
@@ -119,6 +199,50 @@ public class Messages {
 
     public static String ERR_TFER_REQSEND = "There was a problem requesting a transfer.";
     public static String ERR_TFER_SEND = "There was a problem sending a file.";
+    public static String DL_DIGESTMISMATCH(Response r) {
+        return "Ignoring " + r.getOrigin().getHostAddress() + " as a source of \"" + r.getFilename() + "\", since its copy has different contents.";
+    }
+    public static String DL_BADNAME(Response r) {
+        return "Ignoring a response from " + r.getOrigin().getHostAddress() + " for file \"" + r.getFilename()
+                + "\", since it isn't the file that was asked for or isn't a plain filename.";
+    }
+    public static String DL_PIECEBAD(String filename, int piece, String ip) {
+        return "Piece " + piece + " of file \"" + filename + "\" from " + ip + " failed verification, fetching it again.";
+    }
+    public static String DL_INPROGRESS(String filename) {
+        return "File \"" + filename + "\" is already being downloaded, so not starting another download of it.";
+    }
+    public static String DL_FILEBAD(String filename) {
+        return "Downloaded file \"" + filename + "\" doesn't match its digest, so it was discarded. Request it again to start over.";
+    }
+    public static String DL_SOURCEFAIL(String filename, String ip) {
+        return "Stopped downloading file \"" + filename + "\" from " + ip + " after a failed transfer.";
+    }
+    public static String DL_RETRY(String filename, String ip, int attempt) {
+        return "Transfer of file \"" + filename + "\" from " + ip + " failed, retrying (attempt " + attempt + ").";
+    }
+    public static String DL_FAILED(String filename, int piecesDone, int pieceCount) {
+        return "Download of file \"" + filename + "\" failed with " + piecesDone + " of " + pieceCount
+                + " pieces received, since no sources are left. Request it again to resume.";
+    }
+    public static String ERR_TFER_BADREQ(String filename, String ip) {
+        return "Refusing a request from " + ip + " for an unknown file or range of file \"" + filename + "\".";
+    }
+    public static String ERR_TFER_REFUSED(String filename, String ip) {
+        return ip + " refused a request for file \"" + filename + "\".";
+    }
+    public static String ERR_TFER_PIPELINE(String ip) {
+        return "Closing the transfer connection with " + ip + ", since it sent too many requests at once.";
+    }
+    public static String ERR_TFER_SHRUNK(String filename) {
+        return "File \"" + filename + "\" ended before the requested range was sent.";
+    }
+    public static String CONN_IDLE(String ip, long idleMs) {
+        return "Closing the connection with " + ip + ", since nothing was sent or received for " + idleMs + " ms.";
+    }
+    public static String ERR_TFER_INCOMPLETE(String filename, long received, long size) {
+        return "Transfer of file \"" + filename + "\" ended after " + received + " of " + size + " bytes.";
+    }
 
     public static String ERR_FILEREAD = "There was a problem reading a file.";
     public static String ERR_FILEWRITE = "There was a problem writing to a file.";
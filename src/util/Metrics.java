@@ -0,0 +1,140 @@
+package util;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Singleton registry of runtime metrics: counters, gauges and histograms, each known by a dotted name.
+ *
+ * Counters are LongAdders, which spread concurrent increments over several cells, so counting on the hot path
+ * costs about as much as an uncontended add. Callers look a counter or histogram up once, keep it in a field,
+ * and update it directly from then on. Gauges are read only when the metrics are, so they cost nothing until then.
+ *
+ * The metrics are shown by the shell's "stats" command, and exposed over JMX as "p2p:type=Metrics".
+ */
+public class Metrics implements MetricsMXBean {
+    /**
+     * A value that is computed when it is read, such as the number of open connections.
+     */
+    public interface Gauge {
+        long value();
+    }
+
+    private static final Metrics instance = new Metrics();
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private Metrics() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("p2p:type=Metrics"));
+        } catch (JMException e) {
+            // The metrics still work without JMX, through the shell.
+            Log.e(Messages.ERR_METRICS_JMX, e);
+        }
+    }
+
+    public static Metrics get() {
+        return instance;
+    }
+
+    /**
+     * @param name The counter's name.
+     * @return The counter with that name, created if it doesn't exist yet.
+     */
+    public LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new LongAdder());
+            counter = counters.get(name);
+        }
+        return counter;
+    }
+
+    /**
+     * @param name The histogram's name.
+     * @return The histogram with that name, created if it doesn't exist yet.
+     */
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            histogram = histograms.get(name);
+        }
+        return histogram;
+    }
+
+    /**
+     * Add a gauge, replacing any gauge with the same name.
+     *
+     * @param name The gauge's name.
+     * @param gauge The gauge.
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Remove a gauge, e.g. one that describes a connection that was closed.
+     *
+     * @param name The gauge's name.
+     */
+    public void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * Remove a gauge, unless another gauge has replaced it under the same name since.
+     *
+     * @param name The gauge's name.
+     * @param gauge The gauge that was added under that name.
+     */
+    public void removeGauge(String name, Gauge gauge) {
+        gauges.remove(name, gauge);
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : counters.entrySet())
+            values.put(e.getKey(), e.getValue().sum());
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, Gauge> e : gauges.entrySet())
+            values.put(e.getKey(), e.getValue().value());
+        return values;
+    }
+
+    @Override
+    public Map<String, String> getHistograms() {
+        Map<String, String> values = new TreeMap<>();
+        for (Map.Entry<String, Histogram> e : histograms.entrySet())
+            values.put(e.getKey(), e.getValue().toString());
+        return values;
+    }
+
+    /**
+     * @return Every metric, one per line, sorted by name within counters, gauges and histograms.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : getCounters().entrySet())
+            sb.append(e.getKey()).append(" = ").append(e.getValue()).append('\n');
+        for (Map.Entry<String, Long> e : getGauges().entrySet())
+            sb.append(e.getKey()).append(" = ").append(e.getValue()).append('\n');
+        for (Map.Entry<String, String> e : getHistograms().entrySet())
+            sb.append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+        return sb.toString().trim();
+    }
+}
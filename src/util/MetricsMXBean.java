@@ -0,0 +1,24 @@
+package util;
+
+import java.util.Map;
+
+/**
+ * Management interface of Metrics, so the metrics can be read over JMX, e.g. with jconsole,
+ * under the name "p2p:type=Metrics".
+ */
+public interface MetricsMXBean {
+    /**
+     * @return The value of every counter, by name.
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * @return The current value of every gauge, by name.
+     */
+    Map<String, Long> getGauges();
+
+    /**
+     * @return A summary of every histogram, by name.
+     */
+    Map<String, String> getHistograms();
+}
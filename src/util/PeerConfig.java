@@ -5,52 +5,83 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
- * Singleton data class used to store peer configuration.
- * This includes the ports it will use (and for what purpose),
- * as well as files it can share.
+ * Data class used to store a peer's configuration.
+ * This includes the address and ports it will use (and for what purpose),
+ * as well as files it can share and where downloaded files go.
+ * Each peer has a configuration of its own, so several peers can run in one process.
  *
- * This configuration is stored in two files:
+ * The shell's peer reads its configuration from two files in the working directory; see fromFiles():
  * - "config_peer.txt": Stores the ports that the peer will use.
- *  The first two lines are the UDP server and client ports, respectively.
- *  The first port is also implied to be the beginning of the range of 20 ports that this peer can use.
- *  The following lines are the ports that the peer can use for maintaining TCP connections with neighboring peers.
+ *  The three lines are the UDP discovery port, the welcome port for neighbor connections, and the transfer port.
  *
  * - "config_sharing.txt": Stores the filenames of files that can be shared.
- *  Each line is a path, implied to start from "~/p2p/shared/", to a file (that must exist) in ~/p2p/shared/
+ *  Each line is a path, implied to start from "./shared/", to a file (that must exist) in ./shared/
+ *  The shared files are kept in an index, which can be rebuilt from this file while the peer is running.
+ *
+ * A configuration can also be built in memory, e.g. to run many peers over loopback in one process.
+ * A port of 0 then lets the system pick a free one when the peer binds its sockets.
  */
 public class PeerConfig {
-    private static PeerConfig instance;
+    // Address that the peer binds its sockets to and advertises, or null to bind to every interface
+    // and advertise the host's address, as found by LocalAddress
+    public final InetAddress address;
+    public final int udpClientPort, welcomePort, transferPort;
+    public final SharedFileIndex sharedFiles;
+    // Directory that downloaded files are written to
+    public final Path downloadDir;
 
-    static {
-        try {
-            instance = new PeerConfig();
-        } catch (IOException e) {
-            Log.fatal(Messages.ERR_PEERCONFIG, e, -1);
-        }
-    }
+    // File that lists the shared files, or null if they were given in memory
+    private final File sharingList;
 
-    public final int udpClientPort, welcomePort, transferPort;
-    public final List<File> sharedFileList;
+    /**
+     * Create a configuration in memory.
+     *
+     * @param address The address to bind to and advertise, or null to use the host's address.
+     * @param udpClientPort The discovery port, or 0 for any free port.
+     * @param welcomePort The port that neighbor connections are accepted on, or 0 for any free port.
+     * @param transferPort The port that transfer connections are accepted on, or 0 for any free port.
+     * @param sharedFiles The files to share.
+     * @param downloadDir The directory to write downloaded files to. It must exist.
+     */
+    public PeerConfig(InetAddress address, int udpClientPort, int welcomePort, int transferPort,
+                      Collection<File> sharedFiles, Path downloadDir) {
+        this(address, udpClientPort, welcomePort, transferPort, new SharedFileIndex(), downloadDir, null);
+        this.sharedFiles.rebuild(sharedFiles);
+    }
 
-    public static PeerConfig get() {
-        return instance;
+    private PeerConfig(InetAddress address, int udpClientPort, int welcomePort, int transferPort,
+                       SharedFileIndex sharedFiles, Path downloadDir, File sharingList) {
+        this.address = address;
+        this.udpClientPort = udpClientPort;
+        this.welcomePort = welcomePort;
+        this.transferPort = transferPort;
+        this.sharedFiles = sharedFiles;
+        this.downloadDir = downloadDir;
+        this.sharingList = sharingList;
     }
 
     /**
-     * Read the peer configuration files into the object.
+     * Read the peer configuration files from the working directory.
+     * Downloaded files go to "./obtained/", and the host's address is used.
      *
+     * @return The configuration.
      * @throws IOException If one of the two config files could not be read.
      * @throws FileNotFoundException If a file to be shared could not be found.
      */
-    private PeerConfig() throws IOException, FileNotFoundException {
-        File    configPeer = new File("config_peer.txt"),
-                configSharing = new File("config_sharing.txt");
+    public static PeerConfig fromFiles() throws IOException, FileNotFoundException {
+        File configPeer = new File("config_peer.txt");
 
         // Read in ports
+        int udpClientPort, welcomePort, transferPort;
         try (BufferedReader br = new BufferedReader(new FileReader(configPeer))) {
             String udpClientPortText = br.readLine();
             String welcomePortText = br.readLine();
@@ -61,8 +92,68 @@ public class PeerConfig {
         }
 
         // Read in shared files
-        sharedFileList = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(configSharing))) {
+        PeerConfig config = new PeerConfig(null, udpClientPort, welcomePort, transferPort,
+                new SharedFileIndex(), Paths.get("./obtained/"), new File("config_sharing.txt"));
+        config.reloadSharedFiles();
+        return config;
+    }
+
+    /**
+     * Copy this configuration with the ports that the peer's sockets were actually bound to,
+     * which differ from the configured ones where those were 0. The copy shares this one's shared file index.
+     *
+     * @param udpClientPort The discovery port.
+     * @param welcomePort The welcome port.
+     * @param transferPort The transfer port.
+     * @return The copy.
+     */
+    public PeerConfig withPorts(int udpClientPort, int welcomePort, int transferPort) {
+        return new PeerConfig(address, udpClientPort, welcomePort, transferPort, sharedFiles, downloadDir, sharingList);
+    }
+
+    /**
+     * @return The address to advertise to other peers, in pings, pongs and responses.
+     */
+    public InetAddress advertisedAddress() {
+        return address != null ? address : LocalAddress.get();
+    }
+
+    /**
+     * Get the address to bind a socket to: the configured address, or every interface if there is none.
+     * Outgoing connections are bound too, with port 0, so other peers see them come from the configured address.
+     *
+     * @param port The port, or 0 for any free port.
+     * @return The socket address.
+     */
+    public InetSocketAddress bindAddress(int port) {
+        return address != null ? new InetSocketAddress(address, port) : new InetSocketAddress(port);
+    }
+
+    /**
+     * Get the prefix of the names of the peer's gauges. Counters and histograms are shared by every peer in the process,
+     * but gauges read a peer's own state, so each peer's are named apart, and removed when the peer is torn down.
+     *
+     * @return "peer.{address}:{welcome port}." for a configured address, or "peer.{welcome port}." otherwise.
+     */
+    public String metricsPrefix() {
+        return "peer." + (address != null ? address.getHostAddress() + ":" : "") + welcomePort + ".";
+    }
+
+    /**
+     * Read the list of shared files again, and rebuild the shared file index from it.
+     * Queries keep being answered from the old index until the new one is ready.
+     * If the shared files were given in memory, there is no list to read, and the index is left as it is;
+     * it can be rebuilt directly instead.
+     *
+     * @throws IOException If the config file could not be read.
+     * @throws FileNotFoundException If a file to be shared could not be found. The old index is kept in this case.
+     */
+    public void reloadSharedFiles() throws IOException, FileNotFoundException {
+        if (sharingList == null)
+            return;
+
+        List<File> sharedFileList = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(sharingList))) {
             String path;
             while ((path = br.readLine()) != null) {
                 File file = new File("./shared/" + path);
@@ -73,5 +164,6 @@ public class PeerConfig {
                 sharedFileList.add(file);
             }
         }
+        sharedFiles.rebuild(sharedFileList);
     }
 }
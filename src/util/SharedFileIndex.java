@@ -0,0 +1,86 @@
+package util;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Catalog of the files this peer shares, indexed by filename and by the SHA-256 digest of their contents.
+ *
+ * Lookups take constant time no matter how many files are shared, and never block.
+ * The name index is an immutable map that is replaced as a whole by rebuild(),
+ * so queries keep being answered from the old catalog while a new one is built.
+ * Digests are only known once a file has been hashed, so they are added with putDigest() as they are computed.
+ */
+public class SharedFileIndex {
+    // Maps filename to file. Never modified after it is published; rebuild() replaces it instead.
+    private volatile Map<String, File> byName;
+    // Maps file digest to file
+    private final Map<ByteBuffer, File> byDigest;
+
+    public SharedFileIndex() {
+        byName = Collections.emptyMap();
+        byDigest = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Replace the contents of the catalog with a new set of files.
+     * If several files have the same name, the last one wins, since queries only ask for a name.
+     *
+     * @param files The files to share.
+     */
+    public void rebuild(Collection<File> files) {
+        Map<String, File> newByName = new HashMap<>(files.size() * 2);
+        for (File f : files)
+            newByName.put(f.getName(), f);
+        byName = Collections.unmodifiableMap(newByName);
+
+        // Forget digests of files that aren't shared anymore.
+        byDigest.values().retainAll(newByName.values());
+    }
+
+    /**
+     * Record the digest of a shared file, so it can be looked up by its contents.
+     *
+     * @param file The shared file.
+     * @param digest The digest of the file's contents.
+     */
+    public void putDigest(File file, byte[] digest) {
+        if (byName.get(file.getName()) == file)
+            byDigest.put(ByteBuffer.wrap(digest.clone()), file);
+    }
+
+    /**
+     * @param name A filename.
+     * @return The shared file with that name, or null if this peer doesn't share one.
+     */
+    public File byName(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * @param digest A file digest.
+     * @return The shared file with that digest, or null if this peer doesn't share one (or hasn't hashed it yet).
+     */
+    public File byDigest(byte[] digest) {
+        return byDigest.get(ByteBuffer.wrap(digest));
+    }
+
+    /**
+     * @return Every shared file.
+     */
+    public Collection<File> files() {
+        return byName.values();
+    }
+
+    /**
+     * @return The number of shared files.
+     */
+    public int size() {
+        return byName.size();
+    }
+}
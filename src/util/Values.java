@@ -1,26 +1,115 @@
 package util;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.InetAddress;
-import java.net.URL;
-import java.net.UnknownHostException;
-
 /**
  * Class used to provide values such as IP addresses.
  */
 public class Values {
 
-    private static String IPCHECK_URL = "http://checkip.amazonaws.com";
-
-    // Time between (expected) heartbeats, in ms
+    // Time between heartbeats, in ms. A heartbeat is skipped if other messages were sent in the last half interval.
     public static int HEARTBEAT_INTERVAL = 30000;
-    public static int READER_INTERVAL = 100;
+    // Time without receiving anything after which a neighbor is considered gone, in ms.
+    // Must be more than 1.5 intervals, the longest a neighbor may go without sending anything.
+    public static int HEARTBEAT_TIMEOUT = 2 * HEARTBEAT_INTERVAL;
 
     public static int PONGWAIT_INTERVAL = 5000;
 
+    // Largest number of peers that discovery remembers, and how long it remembers a peer it hasn't heard from, in ms
+    public static int PEER_TABLE_CAPACITY = 1024;
+    public static int PEER_TABLE_TTL = 600000;
+    // Time between sweeps of the discovery peer table, which lower the liveness of peers not heard from, in ms
+    public static int PEER_SWEEP_INTERVAL = 60000;
+
+    // Number of times a discovery ping may be propagated, the fewest peers each propagating peer sends it to,
+    // and the number of recent ping IDs remembered to drop duplicates
+    public static int PING_HOP_LIMIT = 6;
+    public static int PING_FANOUT_MIN = 2;
+    public static int PING_DEDUP_CAPACITY = 4096;
+
+    // Length of a round of the gossip membership protocol, in which one member is probed, and the time to wait
+    // for its ack before asking other members to probe it, in ms
+    public static int GOSSIP_INTERVAL = 1000;
+    public static int GOSSIP_PROBE_TIMEOUT = 300;
+    // Number of members asked to probe a member that didn't ack
+    public static int GOSSIP_INDIRECT = 3;
+    // Time a suspected member has to refute the suspicion before it is declared dead, and how long it is remembered
+    // as dead afterwards, in ms
+    public static int GOSSIP_SUSPECT_TIMEOUT = 5000;
+    public static int GOSSIP_DEAD_RETENTION = 60000;
+    // Largest number of membership changes piggybacked on each packet
+    public static int GOSSIP_PIGGYBACK = 6;
+
+    // Size of each bucket of the DHT routing table, which is also the number of peers a provider record is stored at,
+    // and the number of requests a DHT lookup has outstanding at once
+    public static int DHT_BUCKET_SIZE = 8;
+    public static int DHT_ALPHA = 3;
+    // Time to wait for the answer to a DHT request, in ms
+    public static int DHT_REQUEST_TIMEOUT = 1000;
+    // Time after startup before shared files are first published to the DHT, time between publishing them again,
+    // and how long a provider record is kept, in ms. Records must outlive the time between publishing them.
+    public static int DHT_PUBLISH_DELAY = 5000;
+    public static int DHT_REPUBLISH_INTERVAL = 600000;
+    public static int DHT_RECORD_TTL = 1800000;
+    // Largest number of keys whose provider records a peer stores
+    public static int DHT_RECORD_CAPACITY = 4096;
+
+    // Time between checks of the network interfaces for a new address to advertise, in ms
+    public static int ADDRESS_REFRESH_INTERVAL = 60000;
+
+    // Length of a tick of the shared timer and number of ticks in a turn of its wheel.
+    // Timed tasks run up to one tick late.
+    public static int TIMER_TICK = 100;
+    public static int TIMER_WHEEL_SIZE = 512;
+
+    // Time that a peer remembers a query for, in ms, and the largest number of queries it remembers at once.
+    // Responses are only routed back along a query's path while every peer on the path still remembers it.
+    public static int QUERY_EXPIRY = 30000;
+    public static int QUERY_TABLE_CAPACITY = 65536;
+    // Time between sweeps for expired queries, in ms
+    public static int QUERY_SWEEP_INTERVAL = 1000;
+
+    // Number of times a query may be forwarded past the neighbors of the peer that sent it, unless the user picks a limit
+    public static int QUERY_HOP_LIMIT = 7;
+    // Largest number of neighbors that a peer forwards a query to
+    public static int QUERY_FANOUT = 8;
+
+    // Number of filenames whose responses are cached by peers that relay them, and how long a response is cached, in ms
+    public static int RESPONSE_CACHE_CAPACITY = 1024;
+    public static int RESPONSE_CACHE_TTL = 60000;
+
+    // Number of levels of the routing summaries sent to neighbors, i.e. how many hops away they describe files,
+    // and the size and number of hash functions of each level's Bloom filter. Must be the same on every peer.
+    public static int ROUTING_LEVELS = QUERY_HOP_LIMIT + 1;
+    public static int ROUTING_FILTER_BITS = 8192;
+    public static int ROUTING_FILTER_HASHES = 4;
+
+    // Time to keep collecting responses to a query before starting its download, in ms
+    public static int RESPONSE_WINDOW = 500;
+
+    // Size of the pieces that downloads are split into, in bytes
+    public static int PIECE_SIZE = 1 << 20;
+    // Largest number of peers that a single file is downloaded from at once
+    public static int MAX_DOWNLOAD_SOURCES = 8;
+    // Number of times a source is retried after a failed transfer, and the delay before the first retry, in ms
+    public static int TRANSFER_RETRIES = 3;
+    public static int TRANSFER_RETRY_DELAY = 1000;
+    // Time that a transfer may go without any data moving before it is abandoned, in ms
+    public static int TRANSFER_TIMEOUT = 30000;
+    // Largest number of requests outstanding at once on a transfer connection
+    public static int TRANSFER_PIPELINE_DEPTH = 4;
+    // Time that an idle transfer connection is kept open for reuse, in ms, and the most idle connections kept per peer.
+    // Must be less than TRANSFER_TIMEOUT, so the requester closes an idle connection before the sender gives up on it.
+    public static int TRANSFER_POOL_IDLE = 10000;
+    public static int TRANSFER_POOL_SIZE = 2;
+
+    // Number of messages the log holds before dropping new ones, which is rounded down to a power of two
+    public static int LOG_BUFFER_SIZE = 8192;
+    // Size at which the log file is rotated, in bytes, and the number of log files kept, counting the current one
+    public static long LOG_FILE_MAX_BYTES = 10 << 20;
+    public static int LOG_FILE_COUNT = 5;
+
+    // Number of threads used to hash shared files and verify downloaded pieces
+    public static int HASHER_THREADS = 2;
+
     // UTILITIES
 
     /**
@@ -33,39 +122,4 @@ public class Values {
     public static String ipPortStr(String ip, int port) {
         return ip + ":" + port;
     }
-
-    /**
-     * Get the external IP of the host running this program.
-     *
-     * Since <code>InetAddress.getAddress()</code> returns the address of the loopback interface,
-     * this method uses an external service from Amazon to determine the IP address.
-     * If this fails, get the host's private IP address.
-     * Failing that, exit abnormally since an IP address could not be resolved.
-     * @return A string containing the IP address, hopefully the external address, of this host
-     */
-    public static InetAddress ownIPAddr() {
-        // First try contacting AWS for IP address
-        try {
-            URL checkIPURL = new URL(IPCHECK_URL);
-            InputStream checkIPStream = checkIPURL.openStream();
-            BufferedReader br = new BufferedReader(new InputStreamReader(checkIPStream));
-            return InetAddress.getByName(br.readLine());
-        } catch (IOException e) {
-            Log.e(Messages.ERR_CHECKIP, e);
-        }
-
-        // At this point, using the URL didn't work,
-        // so we use the JDK's InetAddress to try to get an IP address.
-        // This may by the address of the loopback interface in some conditions.
-        InetAddress thisHost = null;
-
-        try {
-            thisHost = InetAddress.getLocalHost();
-        } catch (UnknownHostException e) {
-            Log.fatal(Messages.ERR_INETHOSTIP, e, -1);
-        }
-        assert thisHost != null;
-
-        return thisHost;
-    }
 }